@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -178,7 +177,7 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -191,9 +190,10 @@ public class CoffSection {
 			initlen = pageSize;
 
 		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+			Lib.assertTrue(processor.readFileToMemory(file, faddr, paddr,
+					initlen) == initlen);
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		processor.zeroMemory(paddr + initlen, pageSize - initlen);
 	}
 
 	/** The COFF object to which this section belongs. */
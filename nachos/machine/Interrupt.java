@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +52,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingQueue();
 	}
 
 	/**
@@ -119,16 +119,41 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time to just before the next pending interrupt
+	 * becomes due, as if the idle thread had enabled interrupts over and over
+	 * again in the meantime. The handler still fires at exactly the same time
+	 * it would have otherwise, on the next kernel tick.
+	 * 
+	 * <p>
+	 * Called when no thread but the idle thread is ready to run, with
+	 * interrupts disabled.
+	 */
+	public void skipIdleTicks() {
+		Lib.assertTrue(disabled());
+
+		if (pending.isEmpty() || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+
+		long due = pending.firstTime() - stats.totalTicks;
+		long ticks = Math.max(due - 1, 0) / Stats.KernelTick;
+
+		stats.kernelTicks += ticks * Stats.KernelTick;
+		stats.totalTicks += ticks * Stats.KernelTick;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +176,27 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long userTicksBeforeDue() {
+		// a tick with interrupts disabled would enable them, and a traced
+		// tick prints the pending list
+		if (!enabled || Lib.test(dbgInt))
+			return 0;
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		long due = pending.firstTime() - privilege.stats.totalTicks;
+
+		return Math.max(due - 1, 0) / Stats.UserTick;
+	}
+
+	private void advanceUserTicks(long ticks) {
+		Stats stats = privilege.stats;
+
+		stats.userTicks += ticks * Stats.UserTick;
+		stats.totalTicks += ticks * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,86 +208,291 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Check that the pending interrupt queue fires events in order of time and
+	 * then of scheduling, and measure how quickly it can schedule and drain
+	 * millions of events. Run with <tt>-d e</tt>.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgQueue))
+			return;
+
+		System.out.println("Interrupt.selfTest: checking pending queue order");
+
+		Random random = new Random(0);
+		Runnable handler = new Runnable() {
+			public void run() {
+			}
+		};
+
+		// interleave adds and removes, with plenty of equal times; each type
+		// is the sequence number of its add
+		PendingQueue queue = new PendingQueue();
+		long now = 0, lastTime = -1, lastSequence = -1;
+		for (int i = 0; i < 200000; i++) {
+			if (queue.isEmpty() || random.nextInt(3) != 0) {
+				queue.add(now + random.nextInt(50), String.valueOf(i), handler);
+			}
+			else {
+				long time = queue.firstTime();
+				long sequence = Long.parseLong(queue.firstType());
+				queue.removeFirst();
+
+				Lib.assertTrue(time > lastTime
+						|| (time == lastTime && sequence > lastSequence));
+				lastTime = now = time;
+				lastSequence = sequence;
+			}
+		}
+
+		System.out.println("Interrupt.selfTest: benchmarking pending queue");
+
+		// a steady state like a running machine: a few dozen devices, each
+		// rescheduling itself whenever it fires
+		final int numEvents = 5000000;
+		queue = new PendingQueue();
+		for (int i = 0; i < 32; i++)
+			queue.add(1 + random.nextInt(500), "device", handler);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numEvents; i++) {
+			long time = queue.firstTime();
+			queue.removeFirst().run();
+			queue.add(time + 1 + random.nextInt(500), "device", handler);
+		}
+		reportRate("steady state", numEvents, System.nanoTime() - start);
+
+		// schedule a burst of events, then drain them all
+		final int numBurstEvents = 1000000;
+		start = System.nanoTime();
+		for (int i = 0; i < numBurstEvents; i++)
+			queue.add(random.nextInt(1000000), "burst", handler);
+		while (!queue.isEmpty())
+			queue.removeFirst();
+		reportRate("burst", numBurstEvents, System.nanoTime() - start);
+	}
+
+	private static void reportRate(String name, int numEvents, long nanos) {
+		System.out.println("  " + name + ": " + numEvents + " events in "
+				+ (nanos / 1000000) + " ms ("
+				+ (long) (numEvents * 1e9 / Math.max(nanos, 1)) + " events/s)");
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		pending.print();
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * The pending interrupts, kept in a binary heap ordered by time and then
+	 * by the order in which they were scheduled. The heap holds indices of
+	 * slots in a set of parallel arrays; a slot is recycled as soon as its
+	 * interrupt has been removed, so scheduling does not allocate once the
+	 * arrays have grown large enough.
+	 */
+	private static class PendingQueue {
+		PendingQueue() {
+			for (int i = 0; i < initialCapacity; i++)
+				freeSlots[i] = i;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		int size() {
+			return size;
+		}
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
+		/**
+		 * Add an interrupt to the queue.
+		 */
+		void add(long time, String type, Runnable handler) {
+			if (size == heap.length)
+				grow();
+
+			int slot = freeSlots[size];
+			times[slot] = time;
+			ids[slot] = nextId++;
+			types[slot] = type;
+			handlers[slot] = handler;
+
+			siftUp(size++, slot);
+		}
+
+		/**
+		 * Return the time of the earliest interrupt. The queue must not be
+		 * empty.
+		 */
+		long firstTime() {
+			return times[heap[0]];
+		}
+
+		/**
+		 * Return the type of the earliest interrupt. The queue must not be
+		 * empty.
+		 */
+		String firstType() {
+			return types[heap[0]];
+		}
+
+		/**
+		 * Remove the earliest interrupt and return its handler. The queue must
+		 * not be empty.
+		 */
+		Runnable removeFirst() {
+			Lib.assertTrue(size > 0);
+
+			int slot = heap[0];
+			Runnable handler = handlers[slot];
+
+			types[slot] = null;
+			handlers[slot] = null;
+
+			size--;
+			freeSlots[size] = slot;
+
+			if (size > 0)
+				siftDown(0, heap[size]);
+
+			return handler;
+		}
+
+		/**
+		 * Print the pending interrupts in the order they will occur.
+		 */
+		void print() {
+			Integer[] sorted = new Integer[size];
+			for (int i = 0; i < size; i++)
+				sorted[i] = heap[i];
+
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+				}
+			});
+
+			for (int i = 0; i < size; i++)
+				System.out.println("  " + types[sorted[i]] + ", scheduled at "
+						+ times[sorted[i]]);
+		}
+
+		/**
+		 * Return <tt>true</tt> if the interrupt in slot <i>a</i> occurs before
+		 * the one in slot <i>b</i>.
+		 */
+		private boolean before(int a, int b) {
+			if (times[a] != times[b])
+				return times[a] < times[b];
 			else
-				return 0;
+				return ids[a] < ids[b];
 		}
 
-		long time;
+		private void siftUp(int index, int slot) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(slot, heap[parent]))
+					break;
 
-		String type;
+				heap[index] = heap[parent];
+				index = parent;
+			}
 
-		Runnable handler;
+			heap[index] = slot;
+		}
 
-		private long id;
-	}
+		private void siftDown(int index, int slot) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], slot))
+					break;
 
-	private long numPendingInterruptsCreated = 0;
+				heap[index] = heap[child];
+				index = child;
+			}
+
+			heap[index] = slot;
+		}
+
+		private void grow() {
+			int capacity = heap.length * 2;
+
+			heap = Arrays.copyOf(heap, capacity);
+			times = Arrays.copyOf(times, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			types = Arrays.copyOf(types, capacity);
+			handlers = Arrays.copyOf(handlers, capacity);
+
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+			for (int i = size; i < capacity; i++)
+				freeSlots[i] = i;
+		}
+
+		/** The heap of slot indices. */
+		private int[] heap = new int[initialCapacity];
+
+		/**
+		 * The unused slots. Slot <tt>freeSlots[size]</tt> is the next one to
+		 * be used; entries below <tt>size</tt> are meaningless.
+		 */
+		private int[] freeSlots = new int[initialCapacity];
+
+		private long[] times = new long[initialCapacity];
+
+		private long[] ids = new long[initialCapacity];
+
+		private String[] types = new String[initialCapacity];
+
+		private Runnable[] handlers = new Runnable[initialCapacity];
+
+		private int size = 0;
+
+		private long nextId = 0;
+
+		private static final int initialCapacity = 16;
+	}
 
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private PendingQueue pending;
 
 	private static final char dbgInt = 'i';
 
+	private static final char dbgQueue = 'e';
+
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 		public void schedule(long when, String type, Runnable handler) {
 			Interrupt.this.schedule(when, type, handler);
@@ -250,5 +501,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksBeforeDue() {
+			return Interrupt.this.userTicksBeforeDue();
+		}
+
+		public void advanceUserTicks(long ticks) {
+			Interrupt.this.advanceUserTicks(ticks);
+		}
 	}
 }
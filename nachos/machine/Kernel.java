@@ -41,4 +41,11 @@ public abstract class Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public abstract void terminate();
+
+	/**
+	 * Print the kernel's own statistics. Called by <tt>Machine.halt()</tt>
+	 * right after the machine's statistics; by default prints nothing.
+	 */
+	public void printStats() {
+	}
 }
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -77,6 +78,68 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Read this file starting at the specified position into the remaining
+	 * space of a buffer, advancing the buffer's position by the number of
+	 * bytes read. If no bytes were read because of a fatal error, returns -1.
+	 * 
+	 * <p>
+	 * The default implementation reads into the buffer's backing array if it
+	 * has one, and through a temporary array otherwise. Files that can read
+	 * straight into an off-heap buffer should override it.
+	 * 
+	 * @param pos the offset in the file at which to start reading.
+	 * @param buf the buffer to store the bytes in.
+	 * @return the actual number of bytes successfully read, or -1 on failure.
+	 */
+	public int read(int pos, ByteBuffer buf) {
+		if (buf.hasArray()) {
+			int amount = read(pos, buf.array(), buf.arrayOffset()
+					+ buf.position(), buf.remaining());
+			if (amount > 0)
+				buf.position(buf.position() + amount);
+			return amount;
+		}
+
+		byte[] data = new byte[buf.remaining()];
+		int amount = read(pos, data, 0, data.length);
+		if (amount > 0)
+			buf.put(data, 0, amount);
+		return amount;
+	}
+
+	/**
+	 * Write the remaining contents of a buffer to this file starting at the
+	 * specified position, advancing the buffer's position by the number of
+	 * bytes written. If no bytes were written because of a fatal error,
+	 * returns -1.
+	 * 
+	 * <p>
+	 * The default implementation writes from the buffer's backing array if it
+	 * has one, and through a temporary array otherwise.
+	 * 
+	 * @param pos the offset in the file at which to start writing.
+	 * @param buf the buffer to get the bytes from.
+	 * @return the actual number of bytes successfully written, or -1 on
+	 * failure.
+	 */
+	public int write(int pos, ByteBuffer buf) {
+		if (buf.hasArray()) {
+			int amount = write(pos, buf.array(), buf.arrayOffset()
+					+ buf.position(), buf.remaining());
+			if (amount > 0)
+				buf.position(buf.position() + amount);
+			return amount;
+		}
+
+		byte[] data = new byte[buf.remaining()];
+		buf.duplicate().get(data);
+		int amount = write(pos, data, 0, data.length);
+		if (amount > 0)
+			buf.position(buf.position() + amount);
+		return amount;
+	}
+
 	/**
 	 * Get the length of this file.
 	 * 
@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,12 +48,37 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		// compile hot basic blocks, unless every instruction is being traced
+		blockThreshold = Config.getInteger("Processor.blockThreshold", 50);
+		if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble))
+			blockThreshold = 0;
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		// physical addresses are ints
+		Lib.assertTrue((long) pageSize * numPhysPages <= Integer.MAX_VALUE);
+		memorySize = pageSize * numPhysPages;
+
+		if (Config.getBoolean("Processor.offHeapMemory", false)) {
+			String memoryFile = Config.getString("Processor.memoryFile");
+
+			mainMemory = null;
+			if (memoryFile == null)
+				memoryView = ByteBuffer.allocateDirect(memorySize);
+			else
+				memoryView = mapMemoryFile(new File(memoryFile));
+		}
+		else {
+			mainMemory = new byte[memorySize];
+			memoryView = ByteBuffer.wrap(mainMemory);
+		}
+		memoryView.order(ByteOrder.LITTLE_ENDIAN);
+
+		decodeCache = new Decoded[numPhysPages][];
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -101,10 +134,39 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
 		}
 	}
 
+	/**
+	 * Advance the simulated time by one user instruction. Ticks that cannot
+	 * cause an interrupt are only counted, and are added to the statistics in
+	 * bulk before the next real tick or exception.
+	 */
+	private void tick() {
+		if (ticksBeforeDue > 0) {
+			ticksBeforeDue--;
+			batchedTicks++;
+			return;
+		}
+
+		flushTicks();
+		privilege.interrupt.tick(false);
+		ticksBeforeDue = privilege.interrupt.userTicksBeforeDue();
+	}
+
+	/**
+	 * Account for any batched ticks, so that the kernel sees the correct time.
+	 * Must be called before anything that might run kernel code.
+	 */
+	private void flushTicks() {
+		if (batchedTicks > 0)
+			privilege.interrupt.advanceUserTicks(batchedTicks);
+
+		batchedTicks = 0;
+		ticksBeforeDue = 0;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +237,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		invalidateTranslations();
 	}
 
 	/**
@@ -216,6 +279,20 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		invalidateTranslations();
+	}
+
+	/**
+	 * Discard any address translations the processor has cached. Changes made
+	 * through <tt>setPageTable()</tt> and <tt>writeTLBEntry()</tt>, and
+	 * changes to the fields of an entry in the current page table, are seen
+	 * automatically. A kernel that replaces an entry of the current page table
+	 * with a different <tt>TranslationEntry</tt> object must call this
+	 * method.
+	 */
+	public void invalidateTranslations() {
+		fetchTranslation.vpn = -1;
+		dataTranslation.vpn = -1;
 	}
 
 	/**
@@ -232,12 +309,185 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * There is no such array if <tt>Processor.offHeapMemory</tt> is set in
+	 * <tt>nachos.conf</tt>, in which case physical memory must be accessed
+	 * with <tt>copyFromMemory()</tt>, <tt>copyToMemory()</tt>,
+	 * <tt>zeroMemory()</tt>, <tt>readFileToMemory()</tt> and
+	 * <tt>writeMemoryToFile()</tt>.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null);
+
 		return mainMemory;
 	}
 
+	/**
+	 * Copy bytes from physical memory into an array.
+	 * 
+	 * @param paddr the first byte of physical memory to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void copyFromMemory(int paddr, byte[] data, int offset, int length) {
+		checkPhysicalRange(paddr, length);
+
+		ByteBuffer view = memoryView.duplicate();
+		view.position(paddr);
+		view.get(data, offset, length);
+	}
+
+	/**
+	 * Copy bytes from an array into physical memory.
+	 * 
+	 * @param data the array containing the data to copy.
+	 * @param offset the first byte to copy from the array.
+	 * @param paddr the first byte of physical memory to write.
+	 * @param length the number of bytes to copy.
+	 */
+	public void copyToMemory(byte[] data, int offset, int paddr, int length) {
+		checkPhysicalRange(paddr, length);
+
+		ByteBuffer view = memoryView.duplicate();
+		view.position(paddr);
+		view.put(data, offset, length);
+
+		invalidateRange(paddr, length);
+	}
+
+	/**
+	 * Fill a range of physical memory with zeros.
+	 * 
+	 * @param paddr the first byte of physical memory to clear.
+	 * @param length the number of bytes to clear.
+	 */
+	public void zeroMemory(int paddr, int length) {
+		checkPhysicalRange(paddr, length);
+
+		if (mainMemory != null) {
+			Arrays.fill(mainMemory, paddr, paddr + length, (byte) 0);
+		}
+		else {
+			for (int i = 0; i < length; i++)
+				memoryView.put(paddr + i, (byte) 0);
+		}
+
+		invalidateRange(paddr, length);
+	}
+
+	/**
+	 * Read part of a file directly into physical memory, without copying it
+	 * through an intermediate array when the file supports it.
+	 * 
+	 * @param file the file to read.
+	 * @param position the offset in the file at which to start reading.
+	 * @param paddr the first byte of physical memory to write.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, or -1 on failure.
+	 */
+	public int readFileToMemory(OpenFile file, int position, int paddr,
+			int length) {
+		checkPhysicalRange(paddr, length);
+
+		int amount = file.read(position, memoryRange(paddr, length));
+
+		invalidateRange(paddr, length);
+
+		return amount;
+	}
+
+	/**
+	 * Write part of physical memory directly to a file, without copying it
+	 * through an intermediate array when the file supports it.
+	 * 
+	 * @param file the file to write.
+	 * @param position the offset in the file at which to start writing.
+	 * @param paddr the first byte of physical memory to read.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written, or -1 on failure.
+	 */
+	public int writeMemoryToFile(OpenFile file, int position, int paddr,
+			int length) {
+		checkPhysicalRange(paddr, length);
+
+		return file.write(position, memoryRange(paddr, length));
+	}
+
+	/**
+	 * Notify the processor that the contents of a page of physical memory were
+	 * changed without going through a user store instruction, for example when
+	 * the kernel loads the page from a COFF section or from swap, or copies
+	 * data into it through <tt>getMemory()</tt>. Any instructions the
+	 * processor has decoded or compiled from this page are discarded.
+	 * 
+	 * @param ppn the physical page whose contents changed.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+	}
+
+	private void checkPhysicalRange(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memorySize - paddr);
+	}
+
+	/**
+	 * Return a buffer covering the specified range of physical memory, with
+	 * its position at the start of the range and its limit at the end.
+	 */
+	private ByteBuffer memoryRange(int paddr, int length) {
+		ByteBuffer view = memoryView.duplicate();
+		view.limit(paddr + length);
+		view.position(paddr);
+		return view;
+	}
+
+	private void invalidateRange(int paddr, int length) {
+		if (length == 0)
+			return;
+
+		int lastPage = (paddr + length - 1) / pageSize;
+		for (int ppn = paddr / pageSize; ppn <= lastPage; ppn++)
+			decodeCache[ppn] = null;
+	}
+
+	/**
+	 * Create the specified file, sized to hold all of physical memory, and map
+	 * it into memory.
+	 */
+	private ByteBuffer mapMemoryFile(final File file) {
+		final ByteBuffer[] mapped = new ByteBuffer[1];
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+					// start with zeroed memory, like a new array
+					raf.setLength(0);
+					raf.setLength(memorySize);
+
+					mapped[0] = raf.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, memorySize);
+					raf.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		});
+
+		if (mapped[0] == null)
+			Lib.assertNotReached("could not map physical memory to "
+					+ file);
+
+		return mapped[0];
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -292,6 +542,22 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		return translate(vaddr, size, writing, dataTranslation);
+	}
+
+	/**
+	 * Translate the virtual address of an instruction into a physical address.
+	 * 
+	 * @param vaddr the virtual address of the instruction.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateFetch(int vaddr) throws MipsException {
+		return translate(vaddr, 4, false, fetchTranslation);
+	}
+
+	private int translate(int vaddr, int size, boolean writing,
+			CachedTranslation cached) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -308,8 +574,12 @@ public final class Processor {
 
 		TranslationEntry entry = null;
 
+		// most accesses hit the same page as the last one of their kind
+		if (vpn == cached.vpn && cached.entry.valid) {
+			entry = cached.entry;
+		}
 		// if not using a TLB, then the vpn is an index into the table
-		if (!usingTLB) {
+		else if (!usingTLB) {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
@@ -347,6 +617,9 @@ public final class Processor {
 			throw new MipsException(exceptionBusError, vaddr);
 		}
 
+		cached.vpn = vpn;
+		cached.entry = entry;
+
 		// set used and dirty bits as appropriate
 		entry.used = true;
 		if (writing)
@@ -375,8 +648,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = readPhysical(translate(vaddr, size, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +674,62 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		writePhysical(paddr, size, value);
+
+		// the word may have been decoded as an instruction
+		Decoded[] decodedPage = decodeCache[paddr / pageSize];
+		if (decodedPage != null)
+			decodedPage[(paddr % pageSize) / 4] = null;
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>,
+	 * which must be aligned, as a sign-extended little-endian value. Same as
+	 * <tt>Lib.bytesToInt(mainMemory, paddr, size)</tt>, but whole words are
+	 * read at once.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysical(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return memoryView.get(paddr);
+		case 2:
+			return memoryView.getShort(paddr);
+		case 4:
+			return memoryView.getInt(paddr);
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to physical
+	 * memory at <i>paddr</i>, which must be aligned, in little-endian order.
+	 * 
+	 * @param paddr the physical address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 */
+	private void writePhysical(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			memoryView.put(paddr, (byte) value);
+			break;
+		case 2:
+			memoryView.putShort(paddr, (short) value);
+			break;
+		case 4:
+			memoryView.putInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
 	}
 
 	/**
@@ -558,6 +885,12 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/** The translation used by the last instruction fetch. */
+	private CachedTranslation fetchTranslation = new CachedTranslation();
+
+	/** The translation used by the last load or store. */
+	private CachedTranslation dataTranslation = new CachedTranslation();
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -567,9 +900,47 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
+	/** The size of main memory, in bytes. */
+	private int memorySize;
+
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if it is kept off the
+	 * Java heap.
+	 */
 	private byte[] mainMemory;
 
+	/**
+	 * A little-endian view of main memory, wrapping <tt>mainMemory</tt> or an
+	 * off-heap buffer. All user loads, stores and fetches go through this
+	 * view.
+	 */
+	private ByteBuffer memoryView;
+
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page. A page's array is allocated the first time an instruction is
+	 * fetched from it, and discarded by <tt>invalidatePage()</tt>.
+	 */
+	private Decoded[][] decodeCache;
+
+	/**
+	 * The number of times an instruction must be fetched before a basic block
+	 * starting at it is compiled, or <tt>0</tt> to always interpret.
+	 */
+	private int blockThreshold;
+
+	/** The maximum number of instructions in a compiled basic block. */
+	private static final int maxBlockLength = 64;
+
+	/**
+	 * The number of upcoming user ticks that cannot cause an interrupt, as
+	 * last reported by the interrupt controller.
+	 */
+	private long ticksBeforeDue = 0;
+
+	/** The number of user ticks that have not yet been added to the stats. */
+	private long batchedTicks = 0;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,12 +950,30 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	/**
+	 * The virtual page number and translation entry of a recent access. The
+	 * entry is used again only while it remains valid, and is still checked
+	 * for write protection and a valid physical page on every access.
+	 */
+	private static class CachedTranslation {
+		int vpn = -1;
+
+		TranslationEntry entry;
+	}
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
 		}
 	}
 
+	/**
+	 * The exception thrown by every syscall instruction. A syscall carries no
+	 * bad virtual address, so a single instance can be shared.
+	 */
+	private final MipsException syscallException = new MipsException(
+			exceptionSyscall);
+
 	private class MipsException extends Exception {
 		public MipsException(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
@@ -599,7 +988,21 @@ public final class Processor {
 			this.badVAddr = badVAddr;
 		}
 
+		/**
+		 * Traps are how user programs enter the kernel, and are never
+		 * reported with a stack trace, so don't bother filling one in.
+		 */
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+
 		public void handle() {
+			// the kernel may read the clock or schedule new interrupts
+			flushTicks();
+
+			if (cause == exceptionSyscall)
+				privilege.stats.numSyscalls++;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -628,6 +1031,33 @@ public final class Processor {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
+
+			if (decoded.block != null) {
+				decoded.block.run(this);
+				return;
+			}
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Interpret the instruction at the specified physical address, whose
+		 * virtual address is already in the PC.
+		 */
+		public void interpret(int paddr) throws MipsException {
+			lookup(paddr);
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Run an already decoded instruction, as part of a compiled block.
+		 */
+		public void interpret(Decoded decoded) throws MipsException {
+			this.decoded = decoded;
 			decode();
 			execute();
 			writeBack();
@@ -643,78 +1073,71 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			lookup(translateFetch(registers[regPC]));
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+		private void lookup(int paddr) {
+			Decoded[] decodedPage = decodeCache[paddr / pageSize];
+			if (decodedPage == null) {
+				decodedPage = new Decoded[pageSize / 4];
+				decodeCache[paddr / pageSize] = decodedPage;
+			}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+			int index = (paddr % pageSize) / 4;
+			decoded = decodedPage[index];
+			if (decoded == null) {
+				decoded = new Decoded(memoryView.getInt(paddr));
+				decodedPage[index] = decoded;
 			}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			value = decoded.value;
+
+			if (blockThreshold > 0 && decoded.block == null
+					&& ++decoded.hits == blockThreshold)
+				decoded.block = compileBlock(decodedPage, paddr);
+		}
+
+		private void decode() {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -956,7 +1379,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw syscallException;
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1070,6 +1493,8 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1512,549 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Compile the basic block starting at the specified physical address. A
+	 * block ends after the delay slot of its first branch or jump, at the end
+	 * of the page, or before an instruction that always traps, whichever
+	 * comes first.
+	 * 
+	 * @param page the decoded instructions of the page containing the block.
+	 * @param paddr the physical address of the first instruction.
+	 * @return the compiled block, or <tt>null</tt> if the first instruction
+	 * always traps.
+	 */
+	private Block compileBlock(Decoded[] page, int paddr) {
+		int index = (paddr % pageSize) / 4;
+
+		Decoded[] code = new Decoded[maxBlockLength];
+		int length = 0;
+		boolean delaySlot = false;
+
+		while (length < maxBlockLength && index + length < pageSize / 4) {
+			Decoded decoded = page[index + length];
+			if (decoded == null) {
+				decoded = new Decoded(memoryView.getInt(paddr + length * 4));
+				page[index + length] = decoded;
+			}
+
+			if (decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.UNIMPL
+					|| decoded.operation == Mips.INVALID)
+				break;
+
+			code[length++] = decoded;
+
+			if (delaySlot)
+				break;
+			delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+		}
+
+		if (length == 0)
+			return null;
+
+		Decoded[] trimmed = new Decoded[length];
+		System.arraycopy(code, 0, trimmed, 0, length);
+
+		return new Block(page, paddr, trimmed);
+	}
+
+	/**
+	 * Compile a single instruction into an operation specialized for its
+	 * registers and immediate. Instructions that are rarely hot, or whose
+	 * semantics are subtle (overflow traps, division, unaligned accesses),
+	 * are simply handed to the interpreter.
+	 * 
+	 * @param decoded the instruction to compile.
+	 * @return the compiled operation.
+	 */
+	private Op compileOp(final Decoded decoded) {
+		final int rs = decoded.rs, rt = decoded.rt, sh = decoded.sh;
+		final int imm = decoded.imm;
+
+		final boolean immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+
+		if (Lib.test(Mips.OVERFLOW, decoded.flags))
+			return new InterpretedOp(decoded);
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+			if (immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rs] + imm;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] + registers[rt];
+				}
+			};
+		case Mips.SUB:
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] - registers[rt];
+				}
+			};
+		case Mips.AND:
+			if (immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rs] & imm;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] & registers[rt];
+				}
+			};
+		case Mips.OR:
+			if (immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rs] | imm;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] | registers[rt];
+				}
+			};
+		case Mips.XOR:
+			if (immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rs] ^ imm;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] ^ registers[rt];
+				}
+			};
+		case Mips.NOR:
+			return new AluOp(decoded) {
+				int compute() {
+					return ~(registers[rs] | registers[rt]);
+				}
+			};
+		case Mips.SLT:
+			// sltiu compares against the zero-extended immediate
+			if (unsigned && immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return ((long) registers[rs] & 0xFFFFFFFFL) < imm ? 1
+								: 0;
+					}
+				};
+			if (unsigned)
+				return new AluOp(decoded) {
+					int compute() {
+						return ((long) registers[rs] & 0xFFFFFFFFL) < ((long) registers[rt] & 0xFFFFFFFFL) ? 1
+								: 0;
+					}
+				};
+			if (immediate)
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rs] < imm ? 1 : 0;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rs] < registers[rt] ? 1 : 0;
+				}
+			};
+		case Mips.SLL:
+			if (Lib.test(Mips.SRC1SH, decoded.flags))
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rt] << sh;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rt] << (registers[rs] & 0x1F);
+				}
+			};
+		case Mips.SRA:
+		case Mips.SRL:
+			// the interpreter shifts the sign-extended register, so srl
+			// shifts in copies of the sign bit just like sra
+			if (Lib.test(Mips.SRC1SH, decoded.flags))
+				return new AluOp(decoded) {
+					int compute() {
+						return registers[rt] >> sh;
+					}
+				};
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[rt] >> (registers[rs] & 0x1F);
+				}
+			};
+		case Mips.LUI:
+			return new AluOp(decoded) {
+				int compute() {
+					return imm << 16;
+				}
+			};
+		case Mips.MFLO:
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[regLo];
+				}
+			};
+		case Mips.MFHI:
+			return new AluOp(decoded) {
+				int compute() {
+					return registers[regHi];
+				}
+			};
+
+		case Mips.MULT:
+			return new Op() {
+				void run(Instruction inst) {
+					long src1 = registers[rs], src2 = registers[rt];
+					if (unsigned) {
+						src1 &= 0xFFFFFFFFL;
+						src2 &= 0xFFFFFFFFL;
+					}
+
+					long product = src1 * src2;
+					registers[regLo] = (int) product;
+					registers[regHi] = (int) (product >> 32);
+
+					finishLoad();
+					advancePC();
+				}
+			};
+		case Mips.MTLO:
+			return new Op() {
+				void run(Instruction inst) {
+					registers[regLo] = registers[rs];
+					finishLoad();
+					advancePC();
+				}
+			};
+		case Mips.MTHI:
+			return new Op() {
+				void run(Instruction inst) {
+					registers[regHi] = registers[rs];
+					finishLoad();
+					advancePC();
+				}
+			};
+
+		case Mips.LOAD:
+			return new Op() {
+				void run(Instruction inst) throws MipsException {
+					int value = readMem(registers[rs] + imm, decoded.size);
+					if (!unsigned)
+						value = Lib.extend(value, 0, decoded.size * 8);
+
+					delayedLoad(decoded.dstReg, value, 0xFFFFFFFF);
+					advancePC();
+				}
+			};
+		case Mips.STORE:
+			return new Op() {
+				void run(Instruction inst) throws MipsException {
+					writeMem(registers[rs] + imm, decoded.size, registers[rt]);
+					finishLoad();
+					advancePC();
+				}
+			};
+
+		case Mips.BEQ:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] == registers[rt];
+				}
+			};
+		case Mips.BNE:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] != registers[rt];
+				}
+			};
+		case Mips.BGEZ:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] >= 0;
+				}
+			};
+		case Mips.BGTZ:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] > 0;
+				}
+			};
+		case Mips.BLEZ:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] <= 0;
+				}
+			};
+		case Mips.BLTZ:
+			return new BranchOp(decoded) {
+				boolean taken() {
+					return registers[rs] < 0;
+				}
+			};
+
+		case Mips.JUMP:
+			if (decoded.format == Mips.JFMT)
+				return new JumpOp(decoded) {
+					int target() {
+						return (registers[regNextPC] & 0xF0000000)
+								| (decoded.target << 2);
+					}
+				};
+			return new JumpOp(decoded) {
+				int target() {
+					return registers[rs];
+				}
+			};
+
+		default:
+			return new InterpretedOp(decoded);
+		}
+	}
+
+	/**
+	 * A basic block that has been compiled into a sequence of specialized
+	 * operations. Running a block has exactly the same effect as interpreting
+	 * each of its instructions in turn: every instruction is still fetched
+	 * through <tt>translate()</tt> and followed by a clock tick.
+	 */
+	private class Block {
+		Block(Decoded[] page, int paddr, Decoded[] code) {
+			this.page = page;
+			this.paddr = paddr;
+			this.code = code;
+
+			ops = new Op[code.length];
+			for (int i = 0; i < code.length; i++)
+				ops[i] = compileOp(code[i]);
+		}
+
+		/**
+		 * Run this block. The first instruction has already been fetched by
+		 * <tt>inst</tt>; the clock tick after the last instruction is left to
+		 * the caller.
+		 * 
+		 * @param inst the instruction used to interpret anything this block
+		 * cannot run itself.
+		 */
+		void run(Instruction inst) throws MipsException {
+			ops[0].run(inst);
+
+			for (int i = 1; i < ops.length; i++) {
+				tick();
+
+				// the tick may have let the kernel remap or overwrite the
+				// page, in which case fall back to the interpreter
+				int nextPaddr = translateFetch(registers[regPC]);
+
+				if (nextPaddr != paddr + i * 4) {
+					inst.interpret(nextPaddr);
+					return;
+				}
+
+				int index = (nextPaddr % pageSize) / 4;
+				if (decodeCache[nextPaddr / pageSize] != page
+						|| page[index] != code[i]) {
+					code[0].block = null;
+					code[0].hits = 0;
+
+					inst.interpret(nextPaddr);
+					return;
+				}
+
+				ops[i].run(inst);
+			}
+		}
+
+		private Decoded[] page;
+
+		private int paddr;
+
+		private Decoded[] code;
+
+		private Op[] ops;
+	}
+
+	/** A single compiled instruction. */
+	private abstract class Op {
+		abstract void run(Instruction inst) throws MipsException;
+	}
+
+	/** An instruction that is run by the interpreter. */
+	private class InterpretedOp extends Op {
+		InterpretedOp(Decoded decoded) {
+			this.decoded = decoded;
+		}
+
+		void run(Instruction inst) throws MipsException {
+			inst.interpret(decoded);
+		}
+
+		private Decoded decoded;
+	}
+
+	/** An instruction that writes the result of a computation to a register. */
+	private abstract class AluOp extends Op {
+		AluOp(Decoded decoded) {
+			dstReg = decoded.dstReg;
+		}
+
+		abstract int compute();
+
+		final void run(Instruction inst) {
+			// operands are read before the previous delayed load completes
+			int result = compute();
+
+			finishLoad();
+			if (dstReg != 0)
+				registers[dstReg] = result;
+
+			advancePC();
+		}
+
+		private int dstReg;
+	}
+
+	/** A conditional branch, possibly linking. */
+	private abstract class BranchOp extends Op {
+		BranchOp(Decoded decoded) {
+			link = Lib.test(Mips.LINK, decoded.flags);
+			dstReg = decoded.dstReg;
+			offset = decoded.branchOffset;
+		}
+
+		abstract boolean taken();
+
+		final void run(Instruction inst) {
+			boolean taken = taken();
+			int nextPC = registers[regNextPC] + 4;
+			int target = registers[regNextPC] + offset;
+
+			finishLoad();
+			if (link && dstReg != 0)
+				registers[dstReg] = nextPC;
+
+			advancePC(taken ? target : nextPC);
+		}
+
+		private boolean link;
+
+		private int dstReg, offset;
+	}
+
+	/** An unconditional jump, possibly linking. */
+	private abstract class JumpOp extends Op {
+		JumpOp(Decoded decoded) {
+			link = Lib.test(Mips.LINK, decoded.flags);
+			dstReg = decoded.dstReg;
+		}
+
+		abstract int target();
+
+		final void run(Instruction inst) {
+			int nextPC = registers[regNextPC] + 4;
+			int target = target();
+
+			finishLoad();
+			if (link && dstReg != 0)
+				registers[dstReg] = nextPC;
+
+			advancePC(target);
+		}
+
+		private boolean link;
+
+		private int dstReg;
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word,
+	 * and not on the contents of any register.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets are always sign-extended
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg, branchOffset;
+
+		/** The number of times this instruction has been fetched. */
+		int hits;
+
+		/** The compiled block starting at this instruction, if any. */
+		Block block;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
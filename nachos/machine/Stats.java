@@ -31,6 +31,17 @@ public final class Stats {
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		if (Lib.test(dbgTraps)) {
+			long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+			System.out.println("Traps: syscalls " + numSyscalls + " ("
+					+ (numSyscalls * 1000L / elapsed) + "/s), page faults "
+					+ numPageFaults + " (" + (numPageFaults * 1000L / elapsed)
+					+ "/s), TLB misses " + numTLBMisses + " ("
+					+ (numTLBMisses * 1000L / elapsed) + "/s) in " + elapsed
+					+ " ms");
+		}
 	}
 
 	/**
@@ -66,6 +77,9 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of syscalls user programs have made. */
+	public int numSyscalls = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -81,6 +95,11 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** The real time at which Nachos started, used to report trap rates. */
+	private long startTime = System.currentTimeMillis();
+
+	private static final char dbgTraps = 'T';
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -143,6 +145,47 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		public int read(int pos, ByteBuffer buf) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				// read straight into the buffer, even if it is off-heap
+				FileChannel channel = file.getChannel();
+				int amount = 0;
+				while (buf.hasRemaining()) {
+					int read = channel.read(buf, pos + amount);
+					if (read <= 0)
+						break;
+					amount += read;
+				}
+				return amount;
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int write(int pos, ByteBuffer buf) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				FileChannel channel = file.getChannel();
+				int amount = 0;
+				while (buf.hasRemaining())
+					amount += channel.write(buf, pos + amount);
+				return amount;
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
 		public int length() {
 			try {
 				return (int) file.length();
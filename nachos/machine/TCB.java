@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +24,14 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * By default every TCB is backed by a platform thread, and at most
+ * <tt>maxThreads</tt> TCBs may exist at once. Setting
+ * <tt>TCB.virtualThreads</tt> to <tt>true</tt> in the configuration backs
+ * TCBs with virtual threads instead (or, on JVMs without them, with platform
+ * threads that have small stacks), raising the limit to
+ * <tt>maxVirtualThreads</tt>.
  */
 public final class TCB {
 	/**
@@ -39,6 +50,54 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			threadLimit = maxVirtualThreads;
+			virtualThreadBuilder = findVirtualThreadBuilder();
+
+			if (virtualThreadBuilder == null)
+				System.out.print(" (virtual threads unavailable, using small stacks)");
+		}
+	}
+
+	/**
+	 * Look up the JVM's virtual thread builder by reflection, so that Nachos
+	 * still compiles and runs on JVMs that predate virtual threads.
+	 * 
+	 * @return a method that creates an unstarted virtual thread from a
+	 * <tt>Runnable</tt>, or <tt>null</tt> if the JVM has no virtual threads.
+	 */
+	private static Method findVirtualThreadBuilder() {
+		try {
+			virtualThreadFactory = Thread.class.getMethod("ofVirtual").invoke(null);
+			return Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			virtualThreadFactory = null;
+			return null;
+		}
+	}
+
+	/**
+	 * Create the Java thread that will run a new TCB. Must be called with
+	 * privilege.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder != null) {
+			try {
+				return (Thread) virtualThreadBuilder.invoke(
+						virtualThreadFactory, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("could not create virtual thread: " + e);
+			}
+		}
+
+		if (threadLimit == maxVirtualThreads)
+			return new Thread(null, target, "nachos", smallStackSize);
+
+		return new Thread(target);
 	}
 
 	/**
@@ -68,7 +127,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +161,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -255,7 +314,7 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
 		}
@@ -263,7 +322,7 @@ public final class TCB {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(1);
 			else
@@ -291,32 +350,31 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * Parking rather than waiting on a monitor keeps virtual threads from
+	 * pinning their carrier thread while they are switched out.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +404,27 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence when <tt>TCB.virtualThreads</tt> is set.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
+	/**
+	 * The stack size requested for platform threads when
+	 * <tt>TCB.virtualThreads</tt> is set but the JVM has no virtual threads.
+	 */
+	private static final long smallStackSize = 256 * 1024;
+
+	/** The limit on running TCBs in effect, chosen at boot. */
+	private static int threadLimit = maxThreads;
+
+	/** <tt>Thread.Builder.unstarted()</tt>, if virtual threads are in use. */
+	private static Method virtualThreadBuilder = null;
+
+	/** The <tt>Thread.Builder</tt> returned by <tt>Thread.ofVirtual()</tt>. */
+	private static Object virtualThreadFactory = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -362,18 +441,18 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+	 * A set containing all <i>running</i> TCB objects. It is initialized to
+	 * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
 	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * first TCB is created, this set is basically never empty.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static Set<TCB> runningThreads = ConcurrentHashMap.newKeySet();
 
 	private static Privilege privilege;
 
@@ -403,14 +482,14 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
 	 * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
 	 * will know that the current TCB is doomed.
 	 */
-	private boolean done = false;
+	private volatile boolean done = false;
 
 	private KThread nachosThread = null;
 
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.Collection;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -26,9 +28,11 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
-		queues = new SynchList[MailMessage.portLimit];
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		SynchList<MailMessage>[] queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList<MailMessage>();
+		this.queues = queues;
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -63,7 +67,7 @@ public class PostOffice {
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		MailMessage mail = queues[port].removeFirst();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -71,6 +75,23 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve every message queued on the specified port, up to <i>max</i>,
+	 * waiting if necessary until there is at least one.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param into the collection to add the messages to, in arrival order.
+	 * @param max the most messages to retrieve.
+	 * @return the number of messages received.
+	 */
+	public int receiveAll(int port, Collection<MailMessage> into, int max) {
+		Lib.assertTrue(port >= 0 && port < queues.length && max > 0);
+
+		into.add(receive(port));
+
+		return 1 + queues[port].drainTo(into, max - 1);
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -130,7 +151,7 @@ public class PostOffice {
 		messageSent.V();
 	}
 
-	private SynchList[] queues;
+	private SynchList<MailMessage>[] queues;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
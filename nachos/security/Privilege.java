@@ -157,6 +157,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user ticks that can pass before an interrupt
+		 * might become due. Until then, <tt>tick(false)</tt> would do nothing
+		 * but advance the clock, so the caller may run that many user
+		 * instructions and account for them with a single call to
+		 * <tt>advanceUserTicks()</tt>.
+		 * 
+		 * @return the number of ticks that can safely be batched, or
+		 * <tt>0</tt> if every tick must be checked.
+		 */
+		public long userTicksBeforeDue();
+
+		/**
+		 * Advance the simulated time by the specified number of user ticks at
+		 * once, without checking for interrupts.
+		 * 
+		 * @param ticks the number of user ticks, no more than the last value
+		 * returned by <tt>userTicksBeforeDue()</tt>.
+		 */
+		public void advanceUserTicks(long ticks);
 	}
 
 	/**
@@ -0,0 +1,41 @@
+/*
+ * trapbench.c
+ *
+ * Benchmark for the trap path. Makes a large number of cheap syscalls, then
+ * sweeps an array larger than physical memory one byte per page, so that
+ * under demand paging nearly every access faults. Run with "-d T" to have
+ * Nachos report syscalls and page faults per second when it halts.
+ *
+ * Build with "make trapbench" (needs the MIPS cross-compiler) and run it
+ * from proj3, e.g. "nachos -d T -x trapbench.coff". The sweep only faults
+ * on every page while Processor.numPhysPages is well below NumPages.
+ * nachos.userprog.TrapBenchmark builds the same program without the
+ * cross-compiler; run it with "nachos -d uT".
+ */
+
+#include "syscall.h"
+
+#define NumSyscalls	200000
+#define NumSweeps	400
+#define PageSize	1024
+#define NumPages	64
+
+char array[NumPages * PageSize];
+
+int
+main (int argc, char *argv[])
+{
+    int i, page, sum = 0;
+
+    /* closing a bad file descriptor fails without touching the file system */
+    for (i = 0; i < NumSyscalls; i++)
+	close(-1);
+
+    for (i = 0; i < NumSweeps; i++)
+	for (page = 0; page < NumPages; page++) {
+	    array[page * PageSize] += i;
+	    sum += array[page * PageSize];
+	}
+
+    return sum;
+}
@@ -1,6 +1,7 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import nachos.machine.*;
 
@@ -22,37 +23,69 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
-
-        blockedThreadQueue = new PriorityQueue<>();
 	}
 
-    private class BlockedThread implements Comparable {
-        private KThread thread;
-        private long wakeTime;
+	/**
+	 * A pending wakeup for a sleeping thread, returned by
+	 * <tt>setTimeout()</tt>. Timeouts are kept in an indexed binary heap
+	 * ordered by wake time, so arming, cancelling and firing one are all
+	 * O(log n) in the number of pending timeouts.
+	 */
+	public class Timeout {
+		private Timeout(KThread thread, long wakeTime) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+			this.sequence = nextSequence++;
+		}
 
-        public BlockedThread(KThread thread, long wakeTime) {
-            this.thread = thread;
-            this.wakeTime = wakeTime;
-        }
+		/**
+		 * Disarm this timeout if it has not fired yet. The thread is not
+		 * woken; the caller is expected to wake it some other way.
+		 * 
+		 * @return <tt>true</tt> if the timeout was pending, or <tt>false</tt>
+		 * if it had already fired or been cancelled, in which case the thread
+		 * has already been woken.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
 
-        @Override
-        public int compareTo(Object o) {
-            BlockedThread that = (BlockedThread)o;
-            return (int)(this.wakeTime - that.wakeTime);
-        }
+			boolean pending = isPending();
+			if (pending)
+				remove(this);
 
-        @Override
-        public boolean equals(Object o) {
-            if (o == null) {
-                return false;
-            }
-            if (this.getClass() != o.getClass()) {
-                return false;
-            }
-            BlockedThread that = (BlockedThread) o;
-            return this.thread == that.thread;
-        }
-    }
+			Machine.interrupt().restore(intStatus);
+			return pending;
+		}
+
+		/**
+		 * Test whether this timeout is still armed.
+		 * 
+		 * @return <tt>true</tt> if this timeout has neither fired nor been
+		 * cancelled.
+		 */
+		public boolean isPending() {
+			return heapIndex >= 0;
+		}
+
+		/**
+		 * Return the time at which this timeout fires.
+		 * 
+		 * @return the wake time, in ticks.
+		 */
+		public long getWakeTime() {
+			return wakeTime;
+		}
+
+		private KThread thread;
+
+		private long wakeTime;
+
+		/** Orders timeouts with the same wake time by arrival. */
+		private long sequence;
+
+		/** This timeout's position in the heap, or -1 once it is disarmed. */
+		private int heapIndex = -1;
+	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
@@ -63,12 +96,17 @@ public class Alarm {
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
 
-        while (!blockedThreadQueue.isEmpty() && blockedThreadQueue.peek().wakeTime <= Machine.timer().getTime()) {
-            blockedThreadQueue.poll().thread.ready();
-        }
+        ThreadedKernel.scheduler.timerInterrupt();
+
+		long now = Machine.timer().getTime();
+		while (size > 0 && heap[0].wakeTime <= now) {
+			Timeout timeout = heap[0];
+			remove(timeout);
+			timeout.thread.ready();
+		}
 		Machine.interrupt().restore(intStatus);
 
-		KThread.yield();
+		KThread.preempt();
 	}
 
 	/**
@@ -84,24 +122,44 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		// long wakeTime = Machine.timer().getTime() + x;
-		// while (wakeTime > Machine.timer().getTime())
-		// 	KThread.yield();
-
         if (x <= 0) {
             return;
         }
 
 		boolean intStatus = Machine.interrupt().disable();
 
-        /* critical section, the priority queue is shared */
-        long wakeTime = Machine.timer().getTime() + x;
-        BlockedThread blocked = new BlockedThread(KThread.currentThread(), wakeTime);
-        blockedThreadQueue.offer(blocked);
+		setTimeout(x);
+		KThread.sleep();
 
-        KThread.sleep();
-        Machine.interrupt().restore(intStatus);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Arm a timeout that wakes the current thread in <i>x</i> ticks, without
+	 * putting it to sleep. This is the building block for timed waits: with
+	 * interrupts disabled, the caller queues itself wherever it waits, arms a
+	 * timeout and calls <tt>KThread.sleep()</tt>. Whoever wakes it early must
+	 * first <tt>cancel()</tt> the timeout, and must not wake it if that
+	 * returns <tt>false</tt>, since the timer already has.
+	 * 
+	 * <p>
+	 * Must be called with interrupts disabled, and the current thread must
+	 * not already have a pending timeout.
+	 * 
+	 * @param x the minimum number of clock ticks to wait. If not positive,
+	 * the thread is woken at the next timer interrupt.
+	 * @return the armed timeout.
+	 */
+	public Timeout setTimeout(long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(!pending.containsKey(thread));
+
+		Timeout timeout = new Timeout(thread, Machine.timer().getTime() + x);
+		insert(timeout);
+
+		return timeout;
 	}
 
         /**
@@ -116,18 +174,90 @@ public class Alarm {
     public boolean cancel(KThread thread) {
         boolean intStatus = Machine.interrupt().disable();
 
-        for (BlockedThread blockedthread : blockedThreadQueue) {
-            if (blockedthread.thread == thread) {
-                blockedThreadQueue.remove(blockedthread);
-                blockedthread.thread.ready();
-                System.out.println(KThread.currentThread().getName() + " cancelled " + thread.getName() + "'s timer interrupt.");
-                Machine.interrupt().restore(intStatus);
-                return true;
-            }
-        }
+		Timeout timeout = pending.get(thread);
+		if (timeout != null) {
+			remove(timeout);
+			thread.ready();
+			System.out.println(KThread.currentThread().getName() + " cancelled " + thread.getName() + "'s timer interrupt.");
+		}
 
         Machine.interrupt().restore(intStatus);
-        return false;
+        return timeout != null;
+	}
+
+	/**
+	 * Return the number of pending timeouts.
+	 * 
+	 * @return the number of threads waiting on a timeout.
+	 */
+	public int getPendingCount() {
+		return size;
+	}
+
+	private void insert(Timeout timeout) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, 2 * heap.length);
+
+		timeout.heapIndex = size++;
+		heap[timeout.heapIndex] = timeout;
+		siftUp(timeout.heapIndex);
+
+		pending.put(timeout.thread, timeout);
+	}
+
+	private void remove(Timeout timeout) {
+		int index = timeout.heapIndex;
+		Lib.assertTrue(index >= 0 && heap[index] == timeout);
+
+		Timeout last = heap[--size];
+		heap[size] = null;
+		if (index < size) {
+			heap[index] = last;
+			last.heapIndex = index;
+			siftDown(index);
+			siftUp(last.heapIndex);
+		}
+
+		timeout.heapIndex = -1;
+		pending.remove(timeout.thread);
+	}
+
+	private static boolean earlier(Timeout a, Timeout b) {
+		if (a.wakeTime != b.wakeTime)
+			return a.wakeTime < b.wakeTime;
+		return a.sequence < b.sequence;
+	}
+
+	private void siftUp(int index) {
+		Timeout timeout = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!earlier(timeout, heap[parent]))
+				break;
+			heap[index] = heap[parent];
+			heap[index].heapIndex = index;
+			index = parent;
+		}
+		heap[index] = timeout;
+		timeout.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		Timeout timeout = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && earlier(heap[child + 1], heap[child]))
+				child++;
+			if (!earlier(heap[child], timeout))
+				break;
+			heap[index] = heap[child];
+			heap[index].heapIndex = index;
+			index = child;
+		}
+		heap[index] = timeout;
+		timeout.heapIndex = index;
 	}
 
     public static void alarmTest() {
@@ -142,15 +272,84 @@ public class Alarm {
         }
     }
 
+	/**
+	 * Park many threads in timed waits on one condition variable,
+	 * wake half of them early and let the rest time out. Also checks that
+	 * waits far longer than an <tt>int</tt> of ticks order correctly.
+	 */
+	public static void timeoutTest() {
+		final int numWaiters = 200;
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+		final int[] woken = new int[1], timedOut = new int[1];
+
+		KThread[] waiters = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			final long timeout = 20000 + Lib.random(20000);
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					long t0 = Machine.timer().getTime();
+					if (cv.sleepFor(timeout)) {
+						woken[0]++;
+					}
+					else {
+						Lib.assertTrue(Machine.timer().getTime() - t0 >= timeout);
+						timedOut[0]++;
+					}
+					lock.release();
+				}
+			}).setName("waiter-" + i);
+			waiters[i].fork();
+		}
+
+		// let every waiter go to sleep, then wake half of them
+		ThreadedKernel.alarm.waitUntil(10000);
+		lock.acquire();
+		for (int i = 0; i < numWaiters / 2; i++)
+			cv.wake();
+		lock.release();
+
+		for (int i = 0; i < numWaiters; i++)
+			waiters[i].join();
+
+		Lib.assertTrue(woken[0] == numWaiters / 2);
+		Lib.assertTrue(timedOut[0] == numWaiters - numWaiters / 2);
+		Lib.assertTrue(ThreadedKernel.alarm.getPendingCount() == 0);
+
+		Alarm alarm = ThreadedKernel.alarm;
+		long now = Machine.timer().getTime();
+		boolean intStatus = Machine.interrupt().disable();
+		Timeout far = alarm.new Timeout(new KThread(), now + (3L << 32));
+		Timeout near = alarm.new Timeout(new KThread(), now + 1000);
+		alarm.insert(far);
+		alarm.insert(near);
+		Lib.assertTrue(alarm.heap[0] == near);
+		Lib.assertTrue(far.cancel() && near.cancel() && !far.cancel());
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("alarmTest - " + woken[0] + " timed waiters woken, "
+				+ timedOut[0] + " timed out");
+	}
+
     public static void selfTest() {
 		Lib.debug(dbgAlarm, "Enter Alarm.selfTest");
         if (Lib.test(dbgAlarm)) {
             alarmTest();
+            timeoutTest();
             System.out.println("End Alarm.selfTest");
         }
     }
 
 	private static final char dbgAlarm = 'l';
 
-    PriorityQueue<BlockedThread> blockedThreadQueue;
+	/** Pending timeouts, as a binary heap by wake time. */
+	private Timeout[] heap = new Timeout[16];
+
+	private int size = 0;
+
+	/** The pending timeout of each sleeping thread. */
+	private HashMap<KThread, Timeout> pending = new HashMap<KThread, Timeout>();
+
+	private long nextSequence = 0;
 }
@@ -2,40 +2,358 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>, and multiple
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * Words travel through a bounded ring buffer of ints, so a communicator also
+ * works as a multi-producer, multi-consumer channel. <tt>speak()</tt> keeps
+ * the rendezvous semantics, returning only once a listener has taken its
+ * word, while <tt>speakAll()</tt> and <tt>listenInto()</tt> move as many words
+ * as fit per lock acquisition, so a pipeline of threads pays for a context
+ * switch per batch rather than per word. Words are delivered in the order
+ * they were spoken, so a speaker waiting for its word to be taken waits in a
+ * FIFO by sequence number, and each word taken wakes only the speaker whose
+ * word it was.
  */
 public class Communicator {
 	/**
-	 * Allocate a new communicator.
+	 * Allocate a new communicator, whose buffer holds
+	 * <tt>Communicator.capacity</tt> words (default 64).
 	 */
 	public Communicator() {
+		this(Config.getInteger("Communicator.capacity", 64));
+	}
+
+	/**
+	 * Allocate a new communicator whose buffer holds <i>capacity</i> words.
+	 *
+	 * @param capacity the most words that can be spoken but not yet heard.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
 	}
 
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
 	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		lock.acquire();
+
+		waitForSpace();
+		long sequence = written;
+		buffer[(int) (written++ % buffer.length)] = word;
+		notEmpty.wake();
+
+		Delivery delivery = allocate();
+		delivery.sequence = sequence;
+		deliveries.add(delivery);
+		while (read <= sequence)
+			delivery.taken.sleep();
+		free(delivery);
+
+		lock.release();
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		lock.acquire();
+
+		waitForWords();
+		int word = buffer[(int) (read++ % buffer.length)];
+		consumed(1);
+
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Queue every word in <i>words</i>, in order, blocking only while the
+	 * buffer is full. Unlike <tt>speak()</tt>, this returns as soon as the
+	 * last word is buffered, without waiting for listeners to take them.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		lock.acquire();
+
+		int offset = 0;
+		while (offset < words.length) {
+			waitForSpace();
+
+			int count = Math.min(buffer.length - (int) (written - read),
+					words.length - offset);
+			copy(words, offset, buffer, (int) (written % buffer.length), count);
+			written += count;
+			offset += count;
+
+			for (int i = 0; i < Math.min(count, listenersWaiting); i++)
+				notEmpty.wake();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Wait until at least one word has been spoken, then move as many words
+	 * as are available, up to <tt>into.length</tt>, into <i>into</i>.
+	 *
+	 * @param into the array to fill, which must not be empty.
+	 * @return the number of words received.
+	 */
+	public int listenInto(int[] into) {
+		Lib.assertTrue(into.length > 0);
+
+		lock.acquire();
+
+		waitForWords();
+		int count = Math.min((int) (written - read), into.length);
+		copy(buffer, (int) (read % buffer.length), into, 0, count);
+		read += count;
+		consumed(count);
+
+		lock.release();
+		return count;
 	}
+
+	/**
+	 * Copy <i>count</i> words between the ring buffer and an array, where
+	 * whichever of <i>from</i> and <i>to</i> is the ring buffer may wrap.
+	 */
+	private void copy(int[] from, int fromIndex, int[] to, int toIndex,
+			int count) {
+		int ringIndex = (from == buffer) ? fromIndex : toIndex;
+		int first = Math.min(count, buffer.length - ringIndex);
+
+		System.arraycopy(from, fromIndex, to, toIndex, first);
+		if (first < count) {
+			if (from == buffer)
+				System.arraycopy(from, 0, to, toIndex + first, count - first);
+			else
+				System.arraycopy(from, fromIndex + first, to, 0, count - first);
+		}
+	}
+
+	private void waitForSpace() {
+		spaceWaiting++;
+		while (written - read == buffer.length)
+			notFull.sleep();
+		spaceWaiting--;
+	}
+
+	private void waitForWords() {
+		listenersWaiting++;
+		while (written == read)
+			notEmpty.sleep();
+		listenersWaiting--;
+	}
+
+	/**
+	 * Wake the speakers that <i>count</i> newly taken words may unblock: as
+	 * many as the freed space can satisfy, and the speakers of those words.
+	 */
+	private void consumed(int count) {
+		for (int i = 0; i < Math.min(count, spaceWaiting); i++)
+			notFull.wake();
+		while (!deliveries.isEmpty() && deliveries.peek().sequence < read)
+			deliveries.poll().taken.wake();
+	}
+
+	/**
+	 * A speaker waiting in <tt>speak()</tt> for its word to be taken.
+	 */
+	private class Delivery {
+		long sequence;
+
+		Condition2 taken = new Condition2(lock);
+
+		/** The next free record, while on the free list. */
+		Delivery next;
+	}
+
+	private Delivery allocate() {
+		Delivery delivery = freeDeliveries;
+		if (delivery == null)
+			return new Delivery();
+
+		freeDeliveries = delivery.next;
+		delivery.next = null;
+		return delivery;
+	}
+
+	private void free(Delivery delivery) {
+		delivery.next = freeDeliveries;
+		freeDeliveries = delivery;
+	}
+
+	private static class Speaker implements Runnable {
+		Speaker(Communicator channel, int first, int count, boolean batch) {
+			this.channel = channel;
+			this.first = first;
+			this.count = count;
+			this.batch = batch;
+		}
+
+		public void run() {
+			if (!batch) {
+				for (int i = 0; i < count; i++)
+					channel.speak(first + i);
+				return;
+			}
+
+			int[] words = new int[16];
+			for (int i = 0; i < count; i += words.length) {
+				int n = Math.min(words.length, count - i);
+				for (int j = 0; j < n; j++)
+					words[j] = first + i + j;
+				channel.speakAll(n == words.length ? words
+						: Arrays.copyOf(words, n));
+			}
+		}
+
+		private Communicator channel;
+
+		private int first, count;
+
+		private boolean batch;
+	}
+
+	/**
+	 * Send <i>numWords</i> words from each of <i>numSpeakers</i> threads to
+	 * <i>numListeners</i> threads, checking that every word arrives exactly
+	 * once, and return the ticks taken.
+	 */
+	private static long transfer(int numSpeakers, int numListeners,
+			final int numWords, boolean batch) {
+		final Communicator channel = new Communicator(32);
+		final int total = numSpeakers * numWords;
+		final boolean[] seen = new boolean[total];
+		final int[] remaining = { total };
+
+		long start = Machine.timer().getTime();
+
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+		for (int i = 0; i < numSpeakers; i++)
+			threads[i] = new KThread(new Speaker(channel, i * numWords,
+					numWords, batch)).setName("speaker-" + i);
+
+		for (int i = 0; i < numListeners; i++) {
+			final int share = total / numListeners
+					+ (i < total % numListeners ? 1 : 0);
+			final boolean listenBatch = batch;
+			threads[numSpeakers + i] = new KThread(new Runnable() {
+				public void run() {
+					int[] batch = new int[16];
+					for (int got = 0; got < share;) {
+						// never take more than this listener's share
+						int[] into = (share - got < batch.length) ? new int[share
+								- got] : batch;
+						int n;
+						if (listenBatch) {
+							n = channel.listenInto(into);
+						}
+						else {
+							into[0] = channel.listen();
+							n = 1;
+						}
+
+						for (int j = 0; j < n; j++) {
+							int word = into[j];
+							Lib.assertTrue(!seen[word]);
+							seen[word] = true;
+							remaining[0]--;
+						}
+						got += n;
+					}
+				}
+			}).setName("listener-" + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		Lib.assertTrue(remaining[0] == 0);
+		return Machine.timer().getTime() - start;
+	}
+
+	/**
+	 * Test that words are delivered exactly once, and compare the cost of
+	 * word-at-a-time and batched transfers, if <tt>-d q</tt> was given.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgCommunicator))
+			return;
+
+		// a speaker must not return before a listener has its word
+		final Communicator channel = new Communicator();
+		KThread listener = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000);
+				Lib.assertTrue(channel.listen() == 42);
+			}
+		}).setName("listener");
+		listener.fork();
+		long start = Machine.timer().getTime();
+		channel.speak(42);
+		Lib.assertTrue(channel.read == 1
+				&& Machine.timer().getTime() - start >= 1000);
+		listener.join();
+
+		final int numWords = 2000;
+		long single = transfer(4, 4, numWords, false);
+		long batch = transfer(4, 4, numWords, true);
+
+		System.out.println("Communicator: " + (4 * numWords)
+				+ " words, 4 speakers, 4 listeners: speak/listen " + single
+				+ " ticks, speakAll/listenInto " + batch + " ticks");
+		System.out.println("Communicator.selfTest passed");
+	}
+
+	private static final char dbgCommunicator = 'q';
+
+	/** The ring buffer; word <i>n</i> lives at index n % buffer.length. */
+	private int[] buffer;
+
+	/** The number of words ever written to and read from the buffer. */
+	private long written = 0, read = 0;
+
+	/** Threads blocked in the corresponding wait. */
+	private int listenersWaiting = 0, spaceWaiting = 0;
+
+	/** Speakers waiting for their words to be taken, by sequence number. */
+	private ArrayDeque<Delivery> deliveries = new ArrayDeque<Delivery>();
+
+	private Delivery freeDeliveries = null;
+
+	private Lock lock;
+
+	private Condition2 notEmpty;
+
+	private Condition2 notFull;
 }
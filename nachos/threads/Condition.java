@@ -62,6 +62,7 @@ public class Condition {
 		this.conditionLock = conditionLock;
 
 		waitQueue = new LinkedList<Semaphore>();
+		profile = LockProfiler.register("Condition");
 	}
 
 	/**
@@ -79,12 +80,16 @@ public class Condition {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
+		Semaphore waiter = new Semaphore(0, false);
 		waitQueue.add(waiter);
+		long start = (profile == null) ? 0 : LockProfiler.Profile.startWait();
 
 		conditionLock.release();
 		waiter.P();
 		conditionLock.acquire();
+
+		if (profile != null)
+			profile.acquired(start, true);
 	}
 
 	/**
@@ -112,4 +117,7 @@ public class Condition {
 	private Lock conditionLock;
 
 	private LinkedList<Semaphore> waitQueue;
+
+	/** Contention statistics, or <tt>null</tt> if not profiling. */
+	private LockProfiler.Profile profile;
 }
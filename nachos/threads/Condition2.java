@@ -25,6 +25,7 @@ public class Condition2 {
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
         this.waitQueue = new ArrayDeque<>();
+		profile = LockProfiler.register("Condition2");
 	}
 
 	/**
@@ -36,15 +37,21 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		conditionLock.release();
+		/* join the wait queue before releasing the lock, so that a wake()
+		 * that slips in after the release is not lost. */
         boolean intStatus = Machine.interrupt().disable();
+		long start = (profile == null) ? 0 : LockProfiler.Profile.startWait();
 
-        waitQueue.addLast(KThread.currentThread());
+        waitQueue.addLast(new Waiter(KThread.currentThread(), null));
+		conditionLock.release();
         KThread.sleep();
 
 		Machine.interrupt().restore(intStatus);
 
 		conditionLock.acquire();
+
+		if (profile != null)
+			profile.acquired(start, true);
 	}
 
 	/**
@@ -54,19 +61,22 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        /* wake up first thread in the waitQueue, and cancle its interrupt. */
-        if (!waitQueue.isEmpty()) {
-            boolean intStatus = Machine.interrupt().disable();
+		boolean intStatus = Machine.interrupt().disable();
 
-            KThread toWake = waitQueue.pollFirst();
-            if (ThreadedKernel.alarm.cancel(toWake)) {
-                System.out.println("cancelled " + toWake.getName() + "'s intertupt.");
-            } else if (!toWake.isReady()) {
-                toWake.ready();
-            }
+		/* skip timed waiters whose timeout has already woken them */
+		while (!waitQueue.isEmpty()) {
+			Waiter waiter = waitQueue.pollFirst();
+			if (waiter.timeout != null && !waiter.timeout.cancel()) {
+				stale--;
+				continue;
+			}
 
-		    Machine.interrupt().restore(intStatus);
-        }
+			waiter.woken = true;
+			waiter.thread.ready();
+			break;
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -88,18 +98,62 @@ public class Condition2 {
 	 * <i>timeout</i> elapses.  The current thread must hold the
 	 * associated lock.  The thread will automatically reacquire
 	 * the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * <p>
+	 * A waiter that times out is left in the wait queue and skipped by the
+	 * next <tt>wake()</tt>, so neither side ever searches the queue.
+	 * 
+	 * @param timeout the maximum number of ticks to sleep.
+	 * @return <tt>true</tt> if woken by <tt>wake()</tt>, or <tt>false</tt> if
+	 * the timeout elapsed (or was cancelled through the alarm).
 	 */
-    public void sleepFor(long timeout) {
+    public boolean sleepFor(long timeout) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        waitQueue.addLast(KThread.currentThread());
-        conditionLock.release();
+		if (timeout <= 0)
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
+		long start = (profile == null) ? 0 : LockProfiler.Profile.startWait();
 
-        ThreadedKernel.alarm.waitUntil(timeout);
-        conditionLock.acquire();
+		Waiter waiter = new Waiter(KThread.currentThread(),
+				ThreadedKernel.alarm.setTimeout(timeout));
+		waitQueue.addLast(waiter);
+		conditionLock.release();
+		KThread.sleep();
 
-        waitQueue.remove(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
 
+		conditionLock.acquire();
+
+		if (!waiter.woken && ++stale > waitQueue.size() / 2) {
+			// purge timed-out waiters so the queue stays proportional to
+			// the threads actually waiting
+			waitQueue.removeIf(w -> w.timeout != null && !w.timeout.isPending());
+			stale = 0;
+		}
+
+		if (profile != null)
+			profile.acquired(start, true);
+
+		return waiter.woken;
+	}
+
+	/**
+	 * A thread in the wait queue, with the timeout that bounds its wait, if
+	 * any.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread, Alarm.Timeout timeout) {
+			this.thread = thread;
+			this.timeout = timeout;
+		}
+
+		KThread thread;
+
+		Alarm.Timeout timeout;
+
+		boolean woken = false;
 	}
 
     /* Test Case 1: ping pong test. */
@@ -347,5 +401,11 @@ public class Condition2 {
 
     private Lock conditionLock;
 
-    private Deque<KThread> waitQueue; // A queue of waiting threads.
+    private Deque<Waiter> waitQueue; // A queue of waiting threads.
+
+	/** Timed-out waiters still in the wait queue. */
+	private int stale = 0;
+
+	/** Contention statistics, or <tt>null</tt> if not profiling. */
+	private LockProfiler.Profile profile;
 }
@@ -0,0 +1,378 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+
+/**
+ * An earliest-deadline-first scheduler for periodic real-time threads, with
+ * round-robin scheduling in the background for every other thread.
+ *
+ * <p>
+ * A thread becomes real-time by reserving a <i>budget</i> of ticks in every
+ * <i>period</i> with <tt>setRealTime()</tt>. Reservations are admitted only
+ * while the total utilization, the sum of budget/period, stays at or below 1.
+ * Within each period a real-time thread's deadline is the end of the period,
+ * and real-time threads with budget left always run before background
+ * threads, earliest deadline first.
+ *
+ * <p>
+ * CPU time is charged at every context switch and timer interrupt. A
+ * real-time thread that exhausts its budget is throttled until its next
+ * period starts, and meanwhile runs only when nothing else wants the CPU.
+ * Since the alarm preempts on every timer interrupt, a released real-time
+ * thread waits at most one timer period, however many background threads
+ * are runnable.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new EDF thread queue. Deadlines are not donated, so
+	 * <i>transferPriority</i> is ignored.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue();
+	}
+
+	/**
+	 * Reserve <i>budget</i> ticks of CPU time in every <i>period</i> ticks for
+	 * the specified thread, starting now. Replaces any earlier reservation
+	 * for the thread. Must be called with interrupts disabled, and takes
+	 * effect the next time the thread is queued.
+	 *
+	 * @param thread the thread to make real-time.
+	 * @param period the length of each period, in ticks.
+	 * @param budget the ticks reserved in each period.
+	 * @return <tt>true</tt> if the reservation was admitted, or
+	 * <tt>false</tt> if it would raise the total utilization above 1.
+	 */
+	public boolean setRealTime(KThread thread, long period, long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+		EDFState state = getThreadState(thread);
+		double newUtilization = utilization - state.utilization()
+				+ (double) budget / period;
+		if (newUtilization > 1 + 1e-9)
+			return false;
+
+		utilization = newUtilization;
+
+		long now = Machine.timer().getTime();
+		state.period = period;
+		state.budget = budget;
+		state.remaining = budget;
+		state.deadline = now + period;
+
+		return true;
+	}
+
+	/**
+	 * Cancel the specified thread's reservation, returning it to the
+	 * background class. Must be called with interrupts disabled. A
+	 * reservation still held when its thread finishes is cancelled
+	 * automatically.
+	 *
+	 * @param thread the thread to make best-effort.
+	 */
+	public void clearRealTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		EDFState state = getThreadState(thread);
+		utilization -= state.utilization();
+		state.period = 0;
+		state.budget = 0;
+	}
+
+	/**
+	 * Return the utilization reserved by all admitted real-time threads.
+	 *
+	 * @return the sum of budget/period over the real-time threads.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Charge the running thread for the CPU time it has used. If it is a
+	 * real-time thread that has exhausted its budget, the alarm's yield will
+	 * throttle it.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(KThread.currentThread()).charge();
+	}
+
+	/**
+	 * Charge <i>previous</i> for the CPU time it has used, and start the
+	 * clock for <i>next</i>.
+	 */
+	public void dispatch(KThread previous, KThread next) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(previous).charge();
+		getThreadState(next).lastCharged = Machine.timer().getTime();
+	}
+
+	/**
+	 * Release the finishing thread's reservation, if it still holds one, so
+	 * that its utilization is available to later reservations.
+	 */
+	public void threadFinished(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		clearRealTime(thread);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected EDFState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new EDFState(thread);
+
+		return (EDFState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> holding real-time threads with budget in a heap
+	 * by deadline, throttled real-time threads in a heap by the start of
+	 * their next period, and everything else in FIFO order.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			EDFState state = getThreadState(thread);
+			if (thread == KThread.currentThread())
+				state.charge();
+
+			long now = Machine.timer().getTime();
+			state.replenish(now);
+			state.enqueueTime = nextEnqueueTime++;
+
+			if (!state.isRealTime())
+				background.add(state);
+			else if (state.remaining > 0)
+				ready.add(state);
+			else
+				throttled.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+			while (!throttled.isEmpty()
+					&& throttled.peek().deadline <= now) {
+				EDFState state = throttled.poll();
+				state.replenish(now);
+				ready.add(state);
+			}
+
+			EDFState next = ready.poll();
+			if (next == null)
+				next = background.poll();
+			if (next == null)
+				next = throttled.poll();
+
+			return (next == null) ? null : next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (EDFState state : ready)
+				System.out.print(state.thread + " (deadline " + state.deadline
+						+ ") ");
+			for (EDFState state : throttled)
+				System.out.print(state.thread + " (throttled) ");
+			for (EDFState state : background)
+				System.out.print(state.thread + " ");
+			System.out.println();
+		}
+
+		/** Real-time threads with budget left, by deadline. */
+		private PriorityQueue<EDFState> ready = new PriorityQueue<EDFState>(
+				(a, b) -> {
+					if (a.deadline != b.deadline)
+						return Long.compare(a.deadline, b.deadline);
+					return Long.compare(a.enqueueTime, b.enqueueTime);
+				});
+
+		/**
+		 * Real-time threads out of budget, by the end of their current
+		 * period, which is when they are replenished.
+		 */
+		private PriorityQueue<EDFState> throttled = new PriorityQueue<EDFState>(
+				(a, b) -> {
+					if (a.deadline != b.deadline)
+						return Long.compare(a.deadline, b.deadline);
+					return Long.compare(a.enqueueTime, b.enqueueTime);
+				});
+
+		/** Best-effort threads, round-robin. */
+		private ArrayDeque<EDFState> background = new ArrayDeque<EDFState>();
+	}
+
+	/**
+	 * The scheduling state of a thread: its reservation, if any, and its
+	 * progress through the current period.
+	 */
+	protected class EDFState {
+		EDFState(KThread thread) {
+			this.thread = thread;
+		}
+
+		boolean isRealTime() {
+			return period > 0;
+		}
+
+		double utilization() {
+			return isRealTime() ? (double) budget / period : 0;
+		}
+
+		/**
+		 * Charge the ticks since the last charge against the budget.
+		 */
+		void charge() {
+			long now = Machine.timer().getTime();
+			remaining -= now - lastCharged;
+			lastCharged = now;
+		}
+
+		/**
+		 * If the current period has ended, move on to the period containing
+		 * <i>now</i> with a full budget.
+		 */
+		void replenish(long now) {
+			if (!isRealTime() || now < deadline)
+				return;
+
+			deadline += ((now - deadline) / period + 1) * period;
+			remaining = budget;
+		}
+
+		private KThread thread;
+
+		/** The reservation, or zero for a best-effort thread. */
+		private long period = 0, budget = 0;
+
+		/** The end of the current period. */
+		private long deadline;
+
+		/** The budget left in the current period. */
+		private long remaining;
+
+		/** The time up to which this thread has been charged. */
+		private long lastCharged;
+
+		/** Stamps waiters in arrival order, to break ties. */
+		private long enqueueTime;
+	}
+
+	/**
+	 * Check admission control, then measure how late a periodic thread starts
+	 * each period while several CPU-bound background threads run.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgEDF)
+				|| !(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		Lib.assertTrue(scheduler.setRealTime(a, 1000, 600));
+		Lib.assertTrue(!scheduler.setRealTime(b, 1000, 500));
+		Lib.assertTrue(scheduler.setRealTime(b, 1000, 400));
+		scheduler.clearRealTime(a);
+		scheduler.clearRealTime(b);
+		Lib.assertTrue(Math.abs(scheduler.getUtilization()) < 1e-9);
+		Machine.interrupt().restore(intStatus);
+
+		final int numBackground = 8, numPeriods = 20;
+		final long period = 5000, budget = 500;
+		final boolean[] done = new boolean[1];
+		final long[] lateness = new long[2];
+
+		KThread periodic = new KThread(new Runnable() {
+			public void run() {
+				long release = Machine.timer().getTime();
+				for (int i = 0; i < numPeriods; i++) {
+					release += period;
+					ThreadedKernel.alarm.waitUntil(release
+							- Machine.timer().getTime());
+
+					long late = Machine.timer().getTime() - release;
+					lateness[0] += late;
+					lateness[1] = Math.max(lateness[1], late);
+
+					// a little work, well within the budget
+					for (int j = 0; j < 10; j++) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}
+		}).setName("periodic");
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.setRealTime(periodic, period, budget));
+		Machine.interrupt().restore(intStatus);
+
+		KThread[] background = new KThread[numBackground];
+		for (int i = 0; i < numBackground; i++) {
+			background[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("background-" + i);
+			background[i].fork();
+		}
+
+		periodic.fork();
+		periodic.join();
+		done[0] = true;
+		for (int i = 0; i < numBackground; i++)
+			background[i].join();
+
+		// finishing released the periodic thread's reservation
+		Lib.assertTrue(Math.abs(scheduler.getUtilization()) < 1e-9);
+
+		System.out.println("EDFScheduler: " + numBackground
+				+ " background threads, periodic start lateness avg "
+				+ (lateness[0] / numPeriods) + " ticks, max " + lateness[1]);
+		Lib.assertTrue(lateness[1] <= Stats.TimerTicks * 2);
+		System.out.println("EDFScheduler.selfTest passed");
+	}
+
+	private static final char dbgEDF = 'D';
+
+	/** The sum of budget/period over admitted reservations. */
+	private double utilization = 0;
+
+	private long nextEnqueueTime = 0;
+}
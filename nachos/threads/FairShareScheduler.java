@@ -0,0 +1,317 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A fair-share scheduler in the style of Linux's CFS.
+ *
+ * <p>
+ * Every thread carries a virtual runtime: the ticks it has spent on the CPU,
+ * scaled down by its weight. Each queue is a balanced tree ordered by virtual
+ * runtime, and the thread that has received the least weighted CPU time runs
+ * next. A thread's priority is its weight, from <tt>priorityMinimum</tt> to
+ * <tt>priorityMaximum</tt>; a thread with twice the weight of another
+ * receives twice the CPU time when both are runnable, however often either
+ * one yields.
+ *
+ * <p>
+ * Runtime is charged from <tt>Machine.timer().getTime()</tt> deltas, which
+ * advance with <tt>Stats.totalTicks</tt>, when a thread leaves the CPU. A
+ * thread that wakes after sleeping is placed no further back than one
+ * scheduling period behind the least virtual runtime seen, so sleepers cannot
+ * bank credit and then monopolize the CPU.
+ */
+public class FairShareScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair-share scheduler.
+	 */
+	public FairShareScheduler() {
+	}
+
+	/**
+	 * Allocate a new fair-share thread queue. Weights are not donated, so
+	 * <i>transferPriority</i> is ignored.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new fair-share thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairShareQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		// time already run is charged at the old weight
+		FairShareState state = getThreadState(thread);
+		if (thread == KThread.currentThread())
+			state.charge();
+		state.weight = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge <i>previous</i> for the CPU time it has used, and start the
+	 * clock for <i>next</i>.
+	 */
+	public void dispatch(KThread previous, KThread next) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(previous).charge();
+		getThreadState(next).lastCharged = Machine.timer().getTime();
+	}
+
+	/**
+	 * Return the ticks the specified thread has spent on the CPU, as charged
+	 * so far.
+	 *
+	 * @param thread the thread to ask about.
+	 * @return the thread's unweighted runtime.
+	 */
+	public long getRuntime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).runtime;
+	}
+
+	/**
+	 * The default weight of a thread.
+	 */
+	public static final int priorityDefault = 10;
+
+	/**
+	 * The minimum weight of a thread.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum weight of a thread.
+	 */
+	public static final int priorityMaximum = 100;
+
+	/**
+	 * The scheduling period: how far behind the least virtual runtime a
+	 * waking thread may be placed, in weighted ticks.
+	 */
+	private static final long sleeperCredit = Stats.TimerTicks;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected FairShareState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new FairShareState(thread);
+
+		return (FairShareState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> ordered by virtual runtime.
+	 */
+	protected class FairShareQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairShareState state = getThreadState(thread);
+
+			if (thread == KThread.currentThread()) {
+				// still on the CPU: settle its runtime before it is queued
+				state.charge();
+			}
+			else {
+				// waking up: don't let it keep credit from its sleep
+				state.vruntime = Math.max(state.vruntime, minVruntime
+						- sleeperCredit);
+			}
+
+			state.enqueueTime = nextEnqueueTime++;
+			waiters.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairShareState next = waiters.pollFirst();
+			if (next == null)
+				return null;
+
+			minVruntime = Math.max(minVruntime, next.vruntime);
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (FairShareState state : waiters)
+				System.out.print(state.thread + " (" + state.vruntime + ") ");
+			System.out.println();
+		}
+
+		private TreeSet<FairShareState> waiters = new TreeSet<FairShareState>(
+				(a, b) -> {
+					if (a.vruntime != b.vruntime)
+						return Long.compare(a.vruntime, b.vruntime);
+					return Long.compare(a.enqueueTime, b.enqueueTime);
+				});
+	}
+
+	/**
+	 * The scheduling state of a thread: its weight and CPU accounting.
+	 */
+	protected class FairShareState {
+		FairShareState(KThread thread) {
+			this.thread = thread;
+			vruntime = minVruntime;
+			lastCharged = Machine.timer().getTime();
+		}
+
+		/**
+		 * Charge the ticks since the last charge, scaled by weight, to the
+		 * virtual runtime.
+		 */
+		void charge() {
+			long now = Machine.timer().getTime();
+			long delta = now - lastCharged;
+			lastCharged = now;
+
+			runtime += delta;
+			vruntime += delta * priorityDefault / weight;
+		}
+
+		private KThread thread;
+
+		private int weight = priorityDefault;
+
+		/** Weighted ticks on the CPU; the sort key. */
+		private long vruntime;
+
+		/** Unweighted ticks on the CPU. */
+		private long runtime = 0;
+
+		/** The time up to which this thread has been charged. */
+		private long lastCharged;
+
+		/** Stamps waiters in arrival order, to break ties. */
+		private long enqueueTime;
+	}
+
+	/**
+	 * Run three CPU-bound threads: one that yields constantly, one that never
+	 * yields, and one that never yields but has twice the weight. The first
+	 * two should get equal CPU time and the third twice as much.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgFairShare)
+				|| !(ThreadedKernel.scheduler instanceof FairShareScheduler))
+			return;
+
+		final FairShareScheduler scheduler = (FairShareScheduler) ThreadedKernel.scheduler;
+		final long end = Machine.timer().getTime() + 300000;
+
+		KThread yielder = new KThread(new Runnable() {
+			public void run() {
+				while (Machine.timer().getTime() < end) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+					KThread.yield();
+				}
+			}
+		}).setName("yielder");
+
+		Runnable spin = new Runnable() {
+			public void run() {
+				while (Machine.timer().getTime() < end) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		};
+		KThread spinner = new KThread(spin).setName("spinner");
+		KThread heavy = new KThread(spin).setName("heavy");
+
+		boolean intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(heavy, 2 * priorityDefault);
+		Machine.interrupt().restore(intStatus);
+
+		yielder.fork();
+		spinner.fork();
+		heavy.fork();
+		yielder.join();
+		spinner.join();
+		heavy.join();
+
+		intStatus = Machine.interrupt().disable();
+		long yielderTicks = scheduler.getRuntime(yielder);
+		long spinnerTicks = scheduler.getRuntime(spinner);
+		long heavyTicks = scheduler.getRuntime(heavy);
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("FairShareScheduler: yielder " + yielderTicks
+				+ ", spinner " + spinnerTicks + ", heavy (2x weight) "
+				+ heavyTicks + " ticks");
+
+		Lib.assertTrue(Math.abs(yielderTicks - spinnerTicks) < spinnerTicks / 5);
+		Lib.assertTrue(Math.abs(heavyTicks - 2 * spinnerTicks) < spinnerTicks / 2);
+		System.out.println("FairShareScheduler.selfTest passed");
+	}
+
+	private static final char dbgFairShare = 'V';
+
+	/** The least virtual runtime handed the CPU so far; never decreases. */
+	private long minVruntime = 0;
+
+	private long nextEnqueueTime = 0;
+}
@@ -16,7 +16,23 @@ public class Future {
      * of invoking <i>function</i>.
      */
     public Future (IntSupplier function) {
-        
+        this();
+
+        new KThread(new Runnable() {
+            public void run() {
+                complete(function.getAsInt());
+            }
+        }).setName("future").fork();
+    }
+
+    /**
+     * Instantiate a <i>Future</i> with no function of its own, to be
+     * completed by whoever runs its task, such as a <tt>ThreadPool</tt>
+     * worker.
+     */
+    Future () {
+        lock = new Lock();
+        finished = new Condition2(lock);
     }
 
     /**
@@ -29,6 +45,72 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-	    return -1;
+        if (done)
+            return value;
+
+        lock.acquire();
+        while (!done)
+            finished.sleep();
+        lock.release();
+
+        return value;
+    }
+
+    /**
+     * Like <i>get</i>, but give up if the function has not completed
+     * within <i>timeout</i> ticks.
+     *
+     * @param timeout the maximum number of ticks to wait.
+     * @return the result of the function, or <tt>null</tt> if it had
+     * not completed when the timeout elapsed.
+     */
+    public Integer get (long timeout) {
+        if (done)
+            return value;
+
+        long deadline = Machine.timer().getTime() + timeout;
+
+        lock.acquire();
+        while (!done) {
+            long remaining = deadline - Machine.timer().getTime();
+            if (remaining <= 0)
+                break;
+            finished.sleepFor(remaining);
+        }
+        lock.release();
+
+        return done ? Integer.valueOf(value) : null;
     }
+
+    /**
+     * Test whether the function has completed.
+     *
+     * @return <tt>true</tt> if <i>get</i> would not block.
+     */
+    public boolean isDone () {
+        return done;
+    }
+
+    /**
+     * Record the result of the function and wake every thread blocked
+     * in <i>get</i>.  Must be called exactly once.
+     *
+     * @param value the result of the function.
+     */
+    void complete (int value) {
+        lock.acquire();
+        Lib.assertTrue(!done);
+        this.value = value;
+        done = true;
+        finished.wakeAll();
+        lock.release();
+    }
+
+    private Lock lock;
+
+    private Condition2 finished;
+
+    private int value;
+
+    private boolean done = false;
 }
@@ -206,6 +206,7 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
+		ThreadedKernel.scheduler.threadFinished(currentThread);
 
         if (KThread.joinedThreads.containsKey(currentThread)) {
             KThread parent = KThread.joinedThreads.get(currentThread);
@@ -245,6 +246,20 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Like <tt>yield()</tt>, but counted as an involuntary switch for the
+	 * current thread. Called by the alarm when the timer preempts the current
+	 * thread.
+	 */
+	public static void preempt() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		preempting = true;
+		KThread.yield();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -278,6 +293,7 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
+		readyTime = Machine.timer().getTime();
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
 
@@ -298,6 +314,7 @@ public class KThread {
 
         if (this.status == statusFinished) {
             Lib.debug(dbgJoin, this.toString() + " is already finished. Return.");
+            Machine.interrupt().restore(intStatus);
             return;
         }
         KThread.joinedThreads.put(this, currentThread);
@@ -522,9 +539,16 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// nothing can change until the next interrupt, so don't make the
+			// idle thread spin its way there
+			if (currentThread == idleThread)
+				Machine.interrupt().skipIdleTicks();
+
 			nextThread = idleThread;
+		}
 
+		ThreadedKernel.scheduler.dispatch(currentThread, nextThread);
 		nextThread.run();
 	}
 
@@ -554,6 +578,10 @@ public class KThread {
 
 		currentThread.saveState();
 
+		if (this != currentThread)
+			accountSwitch(currentThread, this);
+		preempting = false;
+
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
@@ -564,6 +592,105 @@ public class KThread {
 		currentThread.restoreState();
 	}
 
+	/**
+	 * Charge <i>previous</i> for its time slice and count its switch, and
+	 * record how long <i>next</i> waited in the ready queue.
+	 */
+	private static void accountSwitch(KThread previous, KThread next) {
+		long now = Machine.timer().getTime();
+		long slice = now - previous.dispatchTime;
+
+		previous.cpuTicks += slice;
+		if (previous != idleThread)
+			timeSliceHistogram.add(slice);
+
+		if (preempting)
+			previous.involuntarySwitches++;
+		else if (previous.status != statusFinished)
+			previous.voluntarySwitches++;
+
+		if (next != idleThread)
+			runQueueWaitHistogram.add(now - next.readyTime);
+		next.dispatchTime = now;
+	}
+
+	/**
+	 * Return the time this thread was last put on the ready queue.
+	 * 
+	 * @return the time of the last <tt>ready()</tt>, in ticks.
+	 */
+	public long getReadyTime() {
+		return readyTime;
+	}
+
+	/**
+	 * Return the time this thread was last given the CPU.
+	 * 
+	 * @return the time of the last dispatch, in ticks.
+	 */
+	public long getDispatchTime() {
+		return dispatchTime;
+	}
+
+	/**
+	 * Return the ticks this thread has spent on the CPU, including the
+	 * current time slice if it is running.
+	 * 
+	 * @return this thread's CPU time, in ticks.
+	 */
+	public long getCpuTicks() {
+		if (this == currentThread)
+			return cpuTicks + Machine.timer().getTime() - dispatchTime;
+
+		return cpuTicks;
+	}
+
+	/**
+	 * Return the number of times this thread gave up the CPU by blocking or
+	 * yielding.
+	 * 
+	 * @return the number of voluntary switches.
+	 */
+	public long getVoluntarySwitches() {
+		return voluntarySwitches;
+	}
+
+	/**
+	 * Return the number of times this thread was preempted by the timer.
+	 * 
+	 * @return the number of involuntary switches.
+	 */
+	public long getInvoluntarySwitches() {
+		return involuntarySwitches;
+	}
+
+	/**
+	 * Return the histogram of the time threads spend in the ready queue
+	 * before being dispatched.
+	 * 
+	 * @return the run-queue wait histogram.
+	 */
+	public static TickHistogram getRunQueueWaitHistogram() {
+		return runQueueWaitHistogram;
+	}
+
+	/**
+	 * Return the histogram of the time threads run before giving up the CPU.
+	 * 
+	 * @return the time-slice histogram.
+	 */
+	public static TickHistogram getTimeSliceHistogram() {
+		return timeSliceHistogram;
+	}
+
+	/**
+	 * Print the run-queue wait and time-slice histograms.
+	 */
+	public static void printStats() {
+		runQueueWaitHistogram.print();
+		timeSliceHistogram.print();
+	}
+
 	/**
 	 * Prepare this thread to be run. Set <tt>status</tt> to
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
@@ -672,6 +799,19 @@ public class KThread {
 
 	private TCB tcb;
 
+	/** When this thread last became ready. */
+	private long readyTime = 0;
+
+	/** When this thread last got the CPU. */
+	private long dispatchTime = 0;
+
+	/** CPU time used in completed time slices. */
+	private long cpuTicks = 0;
+
+	private long voluntarySwitches = 0;
+
+	private long involuntarySwitches = 0;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -689,6 +829,15 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	/** Set by <tt>preempt()</tt> for the switch it causes. */
+	private static boolean preempting = false;
+
+	private static TickHistogram runQueueWaitHistogram = new TickHistogram(
+			"Run-queue wait");
+
+	private static TickHistogram timeSliceHistogram = new TickHistogram(
+			"Time slice");
+
     /* a static hashmap for recording all joined threads, Key is the child thread, Value is the parent thread. */
     private static Map<KThread, KThread> joinedThreads = new HashMap<>();
 }
@@ -23,6 +23,7 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		profile = LockProfiler.register("Lock");
 	}
 
 	/**
@@ -34,8 +35,10 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
+		long start = (profile == null) ? 0 : LockProfiler.Profile.startWait();
+		boolean contended = (lockHolder != null);
 
-		if (lockHolder != null) {
+		if (contended) {
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
@@ -46,6 +49,9 @@ public class Lock {
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null)
+			profile.acquired(start, contended);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -57,6 +63,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.released();
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -74,6 +83,9 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
+	/** Contention statistics, or <tt>null</tt> if not profiling. */
+	private LockProfiler.Profile profile;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
@@ -0,0 +1,256 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional contention profiling for <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition</tt> and <tt>Condition2</tt>.
+ *
+ * <p>
+ * With <tt>-d w</tt>, every synchronization object registers a
+ * <tt>Profile</tt> when it is created, tagged with the place in the kernel
+ * that created it. The profile counts acquisitions (a <tt>Lock</tt> acquire,
+ * a <tt>Semaphore</tt> P, or a condition variable sleep), how many of them
+ * had to wait, the total and longest wait, and for locks the total time
+ * held, all in simulated ticks. At halt, the objects and creation sites with
+ * the most wait time are reported; the number shown is
+ * <tt>LockProfiler.topN</tt> (default 10).
+ *
+ * <p>
+ * Without <tt>-d w</tt>, <tt>register()</tt> returns <tt>null</tt> and the
+ * primitives skip all bookkeeping.
+ */
+public class LockProfiler {
+	private LockProfiler() {
+	}
+
+	/**
+	 * Return a new profile for a synchronization object being constructed,
+	 * or <tt>null</tt> if profiling is off.
+	 *
+	 * @param kind the kind of object, such as <tt>"Lock"</tt>.
+	 * @return the object's profile, or <tt>null</tt>.
+	 */
+	public static Profile register(String kind) {
+		if (!Lib.test(dbgProfile))
+			return null;
+
+		String site = creationSite();
+		String key = kind + " " + site;
+
+		Profile siteProfile = sites.get(key);
+		if (siteProfile == null) {
+			siteProfile = new Profile(kind, site, null);
+			sites.put(key, siteProfile);
+		}
+
+		Profile profile = new Profile(kind, site + " #" + siteProfile.instances,
+				siteProfile);
+		siteProfile.instances++;
+		instances.add(profile);
+
+		return profile;
+	}
+
+	/**
+	 * Return the profiles of every registered object.
+	 *
+	 * @return the per-instance profiles.
+	 */
+	public static List<Profile> getInstances() {
+		return Collections.unmodifiableList(instances);
+	}
+
+	/**
+	 * Return the profiles aggregated by creation site.
+	 *
+	 * @return the per-site profiles.
+	 */
+	public static List<Profile> getSites() {
+		return new ArrayList<Profile>(sites.values());
+	}
+
+	/**
+	 * Print the objects and creation sites with the most wait time, if
+	 * profiling is on.
+	 */
+	public static void print() {
+		if (!Lib.test(dbgProfile))
+			return;
+
+		int topN = Config.getInteger("LockProfiler.topN", 10);
+
+		System.out.println("Lock contention by creation site (top " + topN
+				+ " by wait time):");
+		printTop(getSites(), topN);
+
+		System.out.println("Lock contention by instance (top " + topN
+				+ " by wait time):");
+		printTop(new ArrayList<Profile>(instances), topN);
+	}
+
+	private static void printTop(List<Profile> profiles, int topN) {
+		Collections.sort(profiles, new Comparator<Profile>() {
+			public int compare(Profile a, Profile b) {
+				if (a.totalWait != b.totalWait)
+					return Long.compare(b.totalWait, a.totalWait);
+				return Long.compare(b.acquisitions, a.acquisitions);
+			}
+		});
+
+		for (int i = 0; i < Math.min(topN, profiles.size()); i++)
+			System.out.println("  " + profiles.get(i));
+	}
+
+	/**
+	 * Return the first stack frame outside the synchronization classes, which
+	 * is the code constructing the object.
+	 */
+	private static String creationSite() {
+		for (StackTraceElement frame : new Throwable().getStackTrace()) {
+			String className = frame.getClassName();
+			if (!className.equals(LockProfiler.class.getName())
+					&& !className.equals(Lock.class.getName())
+					&& !className.equals(ReadWriteLock.class.getName())
+					&& !className.equals(Semaphore.class.getName())
+					&& !className.equals(Condition.class.getName())
+					&& !className.equals(Condition2.class.getName()))
+				return className.substring(className.lastIndexOf('.') + 1)
+						+ "." + frame.getMethodName() + "("
+						+ frame.getFileName() + ":" + frame.getLineNumber()
+						+ ")";
+		}
+
+		return "(unknown)";
+	}
+
+	/**
+	 * The contention statistics of one synchronization object, or of all the
+	 * objects created at one site.
+	 */
+	public static class Profile {
+		private Profile(String kind, String name, Profile site) {
+			this.kind = kind;
+			this.name = name;
+			this.site = site;
+		}
+
+		/**
+		 * Record an acquisition, once the object has been acquired. The wait
+		 * is the time since <i>start</i>.
+		 *
+		 * @param start the time returned by <tt>startWait()</tt>.
+		 * @param contended <tt>true</tt> if the caller had to wait.
+		 */
+		public void acquired(long start, boolean contended) {
+			long now = Machine.timer().getTime();
+			long wait = now - start;
+
+			record(wait, contended);
+			if (site != null)
+				site.record(wait, contended);
+
+			holdStart = now;
+		}
+
+		/**
+		 * Record that a lock acquired through <tt>acquired()</tt> is being
+		 * released.
+		 */
+		public void released() {
+			long hold = Machine.timer().getTime() - holdStart;
+
+			totalHold += hold;
+			if (site != null)
+				site.totalHold += hold;
+		}
+
+		/**
+		 * Return the current time, to pass to <tt>acquired()</tt>.
+		 *
+		 * @return the current time, in ticks.
+		 */
+		public static long startWait() {
+			return Machine.timer().getTime();
+		}
+
+		private void record(long wait, boolean contended) {
+			acquisitions++;
+			if (contended)
+				contendedAcquisitions++;
+			totalWait += wait;
+			maxWait = Math.max(maxWait, wait);
+		}
+
+		public String getKind() {
+			return kind;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		public long getContendedAcquisitions() {
+			return contendedAcquisitions;
+		}
+
+		public long getTotalWait() {
+			return totalWait;
+		}
+
+		public long getMaxWait() {
+			return maxWait;
+		}
+
+		public long getTotalHold() {
+			return totalHold;
+		}
+
+		public String toString() {
+			return kind + " " + name + (site == null ? " x" + instances : "")
+					+ ": acquired " + acquisitions + ", contended "
+					+ contendedAcquisitions + ", wait total " + totalWait
+					+ " max " + maxWait
+					+ (kind.equals("Lock") ? ", held " + totalHold : "");
+		}
+
+		private String kind;
+
+		private String name;
+
+		/** The aggregate for this object's creation site, if an instance. */
+		private Profile site;
+
+		/** The number of objects created at this site, if a site. */
+		private int instances = 0;
+
+		private long acquisitions = 0;
+
+		private long contendedAcquisitions = 0;
+
+		private long totalWait = 0;
+
+		private long maxWait = 0;
+
+		private long totalHold = 0;
+
+		private long holdStart;
+	}
+
+	private static final char dbgProfile = 'w';
+
+	private static List<Profile> instances = new ArrayList<Profile>();
+
+	private static Map<String, Profile> sites = new HashMap<String, Profile>();
+}
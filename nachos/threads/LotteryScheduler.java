@@ -2,29 +2,32 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps its waiters' ticket counts in a Fenwick (binary indexed)
+ * tree, so holding a lottery, changing a waiter's tickets and removing a
+ * waiter each cost <i>O(log n)</i> rather than a walk over every waiter.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +38,411 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum
+				&& priority <= ticketsMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test ticket transfer, the fairness of the lottery, and the cost of a
+	 * draw with many waiters, if this scheduler is in use and <tt>-d L</tt>
+	 * was given.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgLottery)
+				|| !(ThreadedKernel.scheduler instanceof LotteryScheduler))
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+		Scheduler scheduler = ThreadedKernel.scheduler;
+
+		// tickets add up along a chain of transferring queues
+		KThread holder = new KThread().setName("holder");
+		KThread middle = new KThread().setName("middle");
+		KThread donor = new KThread().setName("donor");
+		ThreadQueue lockA = scheduler.newThreadQueue(true);
+		ThreadQueue lockB = scheduler.newThreadQueue(true);
+		scheduler.setPriority(donor, 10);
+		lockA.acquire(holder);
+		lockB.acquire(middle);
+		lockA.waitForAccess(middle);
+		lockB.waitForAccess(donor);
+		Lib.assertTrue(scheduler.getEffectivePriority(middle) == 11);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 12);
+		scheduler.setPriority(donor, 4);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 6);
+		Lib.assertTrue(lockA.nextThread() == middle);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+		Lib.assertTrue(lockB.nextThread() == donor);
+		Lib.assertTrue(scheduler.getEffectivePriority(middle) == 1);
+
+		// a thread with three times the tickets wins about three times as often
+		KThread rich = new KThread().setName("rich");
+		KThread poor = new KThread().setName("poor");
+		scheduler.setPriority(rich, 3);
+		ThreadQueue ready = scheduler.newThreadQueue(false);
+		ready.waitForAccess(rich);
+		ready.waitForAccess(poor);
+		int richWins = 0, draws = 40000;
+		for (int i = 0; i < draws; i++) {
+			KThread winner = ready.nextThread();
+			if (winner == rich)
+				richWins++;
+			ready.waitForAccess(winner);
+		}
+		Lib.assertTrue(Math.abs(richWins - draws * 3 / 4) < draws / 50);
+
+		// draws stay cheap with thousands of waiters
+		int numWaiters = 10000;
+		for (int i = 0; i < numWaiters; i++) {
+			KThread waiter = new KThread();
+			scheduler.setPriority(waiter, 1 + i % 100);
+			ready.waitForAccess(waiter);
+		}
+		long start = System.nanoTime();
+		int rounds = 1000000;
+		for (int i = 0; i < rounds; i++)
+			ready.waitForAccess(ready.nextThread());
+		System.out.println("LotteryScheduler: " + rounds + " draws among "
+				+ (numWaiters + 2) + " waiters in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		Machine.interrupt().restore(intStatus);
+		System.out.println("LotteryScheduler.selfTest passed");
+	}
+
+	private static final char dbgLottery = 'L';
+
+	/**
+	 * The minimum number of tickets a thread can hold.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets a thread can hold.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that picks threads by lottery. Each waiter owns
+	 * a slot in a Fenwick tree holding its effective tickets.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+
+			waiters = new LotteryState[initialCapacity];
+			freeSlots = new int[initialCapacity];
+			for (int slot = initialCapacity - 1; slot >= 0; slot--)
+				freeSlots[freeCount++] = slot;
+			tree = new long[initialCapacity + 1];
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+			insert(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			setOwner(getThreadState(thread));
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0) {
+				setOwner(null);
+				return null;
+			}
+
+			LotteryState winner = draw();
+			remove(winner);
+			setOwner(winner);
+
+			return winner.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 0; slot < waiters.length; slot++) {
+				if (waiters[slot] != null)
+					System.out.print(waiters[slot].thread + " ("
+							+ waiters[slot].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the total effective tickets of the waiting threads.
+		 *
+		 * @return the number of tickets in this queue's lottery.
+		 */
+		public long totalTickets() {
+			return totalTickets;
+		}
+
+		/**
+		 * Hold a lottery among the waiters. Finds the slot whose range of
+		 * ticket numbers contains the winning number by descending the
+		 * Fenwick tree.
+		 */
+		private LotteryState draw() {
+			long winning;
+			if (totalTickets <= Integer.MAX_VALUE)
+				winning = Lib.random((int) totalTickets);
+			else
+				winning = (long) (Lib.random() * totalTickets);
+
+			int index = 0;
+			for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+				int next = index + step;
+				if (next < tree.length && tree[next] <= winning) {
+					index = next;
+					winning -= tree[next];
+				}
+			}
+
+			// tree indices are one-based, so index is the winner's slot
+			Lib.assertTrue(waiters[index] != null);
+			return waiters[index];
+		}
+
+		void insert(LotteryState state) {
+			if (freeCount == 0)
+				grow();
+
+			int slot = freeSlots[--freeCount];
+			waiters[slot] = state;
+			state.waitQueue = this;
+			state.queueIndex = slot;
+			size++;
+
+			add(slot, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			int slot = state.queueIndex;
+			add(slot, -state.effectiveTickets);
+
+			waiters[slot] = null;
+			freeSlots[freeCount++] = slot;
+			size--;
+
+			state.waitQueue = null;
+			state.queueIndex = -1;
+		}
+
+		/**
+		 * Adjust the tickets of a waiting thread by <tt>delta</tt>.
+		 */
+		void adjust(LotteryState state, long delta) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			add(state.queueIndex, delta);
+		}
+
+		/**
+		 * Make <tt>state</tt> the thread that holds the resource guarded by
+		 * this queue, moving this queue's tickets from the old holder to the
+		 * new one.
+		 */
+		void setOwner(LotteryState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null)
+				owner.addTickets(-totalTickets);
+
+			owner = state;
+
+			if (owner != null)
+				owner.addTickets(totalTickets);
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to a slot, and pass the change on to the
+		 * owner if this queue transfers tickets.
+		 */
+		private void add(int slot, long delta) {
+			if (delta == 0)
+				return;
+
+			for (int i = slot + 1; i < tree.length; i += i & -i)
+				tree[i] += delta;
+			totalTickets += delta;
+
+			if (transferPriority && owner != null)
+				owner.addTickets(delta);
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int oldCapacity = waiters.length;
+			int capacity = 2 * oldCapacity;
+
+			waiters = Arrays.copyOf(waiters, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+			for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+				freeSlots[freeCount++] = slot;
+
+			tree = new long[capacity + 1];
+			for (int slot = 0; slot < oldCapacity; slot++) {
+				if (waiters[slot] != null)
+					tree[slot + 1] += waiters[slot].effectiveTickets;
+			}
+			for (int i = 1; i <= capacity; i++) {
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting thread in each slot, or <tt>null</tt>. */
+		private LotteryState[] waiters;
+
+		/** The one-based Fenwick tree over the slots' tickets. */
+		private long[] tree;
+
+		/** A stack of unused slots. */
+		private int[] freeSlots;
+
+		private int freeCount = 0;
+
+		/** The number of waiting threads. */
+		private int size = 0;
+
+		/** The sum of the waiters' effective tickets. */
+		private long totalTickets = 0;
+
+		/** The thread holding this queue's resource, if transferring. */
+		private LotteryState owner = null;
+
+		/** The number of slots a new queue starts with; a power of two. */
+		private static final int initialCapacity = 8;
+	}
+
+	/**
+	 * The scheduling state of a thread under lottery scheduling. The
+	 * priority inherited from <tt>ThreadState</tt> is the thread's own ticket
+	 * count, and the inherited effective priority caches its effective
+	 * tickets, capped at <tt>ticketsMaximum</tt>. The inherited
+	 * <tt>waitQueue</tt> and <tt>queueIndex</tt> hold the lottery queue the
+	 * thread waits on and its slot there.
+	 */
+	protected class LotteryState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			super(thread);
+
+			effectiveTickets = priority;
+		}
+
+		/**
+		 * Set the ticket count of the associated thread.
+		 *
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Change the effective tickets by <tt>delta</tt>, passing the change
+		 * on to the queue this thread waits on, and from there to its owner.
+		 */
+		void addTickets(long delta) {
+			effectiveTickets += delta;
+			effectivePriority = (int) Math.min(effectiveTickets, ticketsMaximum);
+
+			if (waitQueue != null)
+				((LotteryQueue) waitQueue).adjust(this, delta);
+		}
+
+		/** Own tickets plus tickets donated through owned queues. */
+		private long effectiveTickets;
 	}
 }
@@ -0,0 +1,310 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every queue keeps one FIFO run queue per level, level 0 being the most
+ * favoured, and a bitmap of the levels that are non-empty, so
+ * <tt>nextThread()</tt> finds the best waiting thread in constant time.
+ *
+ * <p>
+ * A thread's quantum at level <i>l</i> is 2<sup><i>l</i></sup> timer
+ * interrupts. A thread that is still running when its quantum runs out is
+ * demoted one level. A thread that blocks and is later woken by another
+ * thread (on I/O, a lock, a semaphore or the alarm) is promoted one level.
+ * Every <tt>MLFQScheduler.boostInterval</tt> ticks (default 10000), all
+ * threads are moved back to level 0 so that demoted threads cannot starve.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 10000);
+		Lib.assertTrue(boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue. MLFQ does not donate priority, so
+	 * <i>transferPriority</i> is ignored.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread as its priority, so that a
+	 * higher number means a more favoured thread.
+	 *
+	 * @param thread the thread to get the priority of.
+	 * @return <tt>numLevels - 1 - level</tt>.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	/**
+	 * Charge the current thread one timer interrupt, demoting it if it has
+	 * used up its quantum, and boost every thread if the boost interval has
+	 * passed.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (Machine.timer().getTime() >= nextBoost) {
+			boostEpoch++;
+			nextBoost = Machine.timer().getTime() + boostInterval;
+		}
+
+		getThreadState(KThread.currentThread()).charge();
+	}
+
+	/**
+	 * The number of levels.
+	 */
+	public static final int numLevels = 8;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected MLFQState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new MLFQState();
+
+		return (MLFQState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			levels = new ArrayList<ArrayDeque<KThread>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new ArrayDeque<KThread>());
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			MLFQState state = getThreadState(thread);
+
+			/*
+			 * A thread that is not the one running was blocked and is being
+			 * woken by someone else, so it gets promoted.
+			 */
+			if (thread != KThread.currentThread())
+				state.promote();
+
+			int level = state.getLevel();
+			levels.get(level).add(thread);
+			nonEmpty |= 1 << level;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (epoch != boostEpoch)
+				boost();
+
+			if (nonEmpty == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			KThread thread = levels.get(level).removeFirst();
+			if (levels.get(level).isEmpty())
+				nonEmpty &= ~(1 << level);
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (KThread thread : levels.get(level))
+					System.out.print(thread + " (" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Move every waiter up to level 0, keeping the most favoured first.
+		 * Done lazily, the first time the queue is used after a boost.
+		 */
+		private void boost() {
+			epoch = boostEpoch;
+
+			for (int level = 1; level < numLevels; level++) {
+				while (!levels.get(level).isEmpty())
+					levels.get(0).add(levels.get(level).removeFirst());
+			}
+
+			nonEmpty = levels.get(0).isEmpty() ? 0 : 1;
+		}
+
+		private List<ArrayDeque<KThread>> levels;
+
+		/** Bit <i>l</i> is set if and only if level <i>l</i> is non-empty. */
+		private int nonEmpty = 0;
+
+		/** The boost this queue has caught up with. */
+		private int epoch = boostEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of its
+	 * quantum it has used there.
+	 */
+	protected class MLFQState {
+		/**
+		 * Return the level of the associated thread, after applying any boost
+		 * it has not seen yet.
+		 *
+		 * @return the thread's level.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Charge one timer interrupt, and demote the thread if that uses up
+		 * its quantum.
+		 */
+		void charge() {
+			getLevel();
+
+			if (++used >= (1 << level)) {
+				used = 0;
+				if (level < numLevels - 1)
+					level++;
+			}
+		}
+
+		/**
+		 * Move the thread up one level with a fresh quantum.
+		 */
+		void promote() {
+			getLevel();
+
+			used = 0;
+			if (level > 0)
+				level--;
+		}
+
+		private int level = 0;
+
+		/** Timer interrupts charged at the current level. */
+		private int used = 0;
+
+		/** The boost this state has caught up with. */
+		private int epoch = boostEpoch;
+	}
+
+	/**
+	 * Check the bitmap selection, demotion and boost directly, then measure
+	 * how long an interactive thread that sleeps on the alarm waits to run
+	 * while CPU-bound threads compete with it.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgMLFQ)
+				|| !(ThreadedKernel.scheduler instanceof MLFQScheduler))
+			return;
+
+		final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread hog = new KThread().setName("hog");
+		KThread fresh = new KThread().setName("fresh");
+		MLFQState hogState = scheduler.getThreadState(hog);
+		hogState.charge();
+		Lib.assertTrue(hogState.getLevel() == 1);
+		hogState.charge();
+		hogState.charge();
+		Lib.assertTrue(hogState.getLevel() == 2);
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		queue.waitForAccess(hog);
+		queue.waitForAccess(fresh);
+		Lib.assertTrue(queue.nextThread() == fresh);
+		Lib.assertTrue(queue.nextThread() == hog);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		scheduler.boostEpoch++;
+		Lib.assertTrue(hogState.getLevel() == 0);
+
+		Machine.interrupt().restore(intStatus);
+
+		final int numHogs = 4, numWakeups = 20;
+		final boolean[] done = new boolean[1];
+		KThread[] hogs = new KThread[numHogs];
+		for (int i = 0; i < numHogs; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("hog-" + i);
+			hogs[i].fork();
+		}
+
+		long totalLatency = 0, maxLatency = 0;
+		for (int i = 0; i < numWakeups; i++) {
+			long wakeTime = Machine.timer().getTime() + 1000;
+			ThreadedKernel.alarm.waitUntil(1000);
+
+			long latency = Machine.timer().getTime() - wakeTime;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+		done[0] = true;
+		for (int i = 0; i < numHogs; i++)
+			hogs[i].join();
+
+		System.out.println("MLFQScheduler: " + numHogs + " CPU hogs, "
+				+ "interactive wakeup latency avg "
+				+ (totalLatency / numWakeups) + " ticks, max " + maxLatency);
+		System.out.println("MLFQScheduler.selfTest passed");
+	}
+
+	private static final char dbgMLFQ = 'f';
+
+	/** Ticks between boosts back to level 0. */
+	private int boostInterval;
+
+	/** The time of the next boost. */
+	private long nextBoost;
+
+	/** Incremented on every boost. */
+	private int boostEpoch = 0;
+}
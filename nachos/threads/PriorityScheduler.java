@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +23,13 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue is an indexed binary heap ordered by effective priority and then
+ * by arrival, so enqueueing, dequeueing and repositioning a waiter are all
+ * <i>O(log n)</i>. Each thread keeps a count of the donations it receives at
+ * every priority level, and a change in effective priority is pushed along
+ * the chain of lock holders only as far as it makes a difference.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -97,6 +102,118 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test queue ordering and priority donation directly on this scheduler's
+	 * queues, then time several hundred threads of mixed priority contending
+	 * on a few locks.
+	 */
+	private static void donationTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread high = new KThread().setName("high");
+		KThread other = new KThread().setName("other");
+		scheduler.setPriority(high, 6);
+		scheduler.setPriority(other, 6);
+
+		// ordering: highest effective priority first, FIFO among equals
+		ThreadQueue ready = scheduler.newThreadQueue(false);
+		ready.waitForAccess(low);
+		ready.waitForAccess(high);
+		ready.waitForAccess(mid);
+		ready.waitForAccess(other);
+		Lib.assertTrue(ready.nextThread() == high);
+		Lib.assertTrue(ready.nextThread() == other);
+		Lib.assertTrue(ready.nextThread() == low);
+		Lib.assertTrue(ready.nextThread() == mid);
+		Lib.assertTrue(ready.nextThread() == null);
+
+		// chained donation: high -> lockB (held by mid) -> lockA (held by low)
+		ThreadQueue lockA = scheduler.newThreadQueue(true);
+		ThreadQueue lockB = scheduler.newThreadQueue(true);
+		lockA.acquire(low);
+		lockB.acquire(mid);
+		lockA.waitForAccess(mid);
+		lockB.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+		// lowering the donor's priority is pushed down the chain
+		scheduler.setPriority(high, 3);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+
+		// a thread in the ready queue moves when it receives a donation
+		ready.waitForAccess(other);
+		ready.waitForAccess(low);
+		scheduler.setPriority(high, 7);
+		Lib.assertTrue(ready.nextThread() == low);
+		Lib.assertTrue(ready.nextThread() == other);
+
+		// releasing lockA hands it to mid and drops low back to its priority
+		Lib.assertTrue(lockA.nextThread() == mid);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityDefault);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 7);
+		Lib.assertTrue(lockB.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == priorityDefault);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void contentionTest() {
+		final int numThreads = 400, numLocks = 4, rounds = 20;
+		final Lock[] locks = new Lock[numLocks];
+		for (int i = 0; i < numLocks; i++)
+			locks[i] = new Lock();
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < rounds; j++) {
+						Lock lock = locks[(id + j) % numLocks];
+						lock.acquire();
+						KThread.yield();
+						lock.release();
+					}
+				}
+			}).setName("contender-" + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(threads[i], i % (priorityMaximum + 1));
+			Machine.interrupt().restore(intStatus);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		System.out.println("PriorityScheduler: " + numThreads + " threads x "
+				+ rounds + " acquires on " + numLocks + " locks in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Test this scheduler, if it is the one in use and <tt>-d P</tt> was
+	 * given. Subclasses such as <tt>LotteryScheduler</tt> order their queues
+	 * differently, so they are not tested here.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgPriority)
+				|| ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+			return;
+
+		donationTest();
+		contentionTest();
+		System.out.println("PriorityScheduler.selfTest passed");
+	}
+
+	private static final char dbgPriority = 'P';
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -133,6 +250,15 @@ public class PriorityScheduler extends Scheduler {
 			this.transferPriority = transferPriority;
 		}
 
+		/**
+		 * Return the number of threads waiting on this queue.
+		 *
+		 * @return the number of waiting threads.
+		 */
+		public int size() {
+			return size;
+		}
+
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).waitForAccess(this);
@@ -145,8 +271,17 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +291,162 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] waiters = Arrays.copyOf(heap, size);
+			Arrays.sort(waiters, (a, b) -> before(a, b) ? -1 : 1);
+
+			for (ThreadState state : waiters)
+				System.out.print(state.thread + " (" + state.effectivePriority
+						+ ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Add a waiting thread to the heap.
+		 */
+		void insert(ThreadState state) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, 2 * heap.length);
+
+			state.waitQueue = this;
+			state.enqueueTime = nextEnqueueTime++;
+			state.queueIndex = size;
+			heap[size++] = state;
+			siftUp(state.queueIndex);
+
+			updateDonation();
+		}
+
+		/**
+		 * Remove a waiting thread from the heap.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			int index = state.queueIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index != size) {
+				heap[index] = last;
+				last.queueIndex = index;
+				siftDown(index);
+				siftUp(last.queueIndex);
+			}
+
+			state.waitQueue = null;
+			state.queueIndex = -1;
+
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority just changed to its
+		 * new place in the heap.
+		 */
+		void reposition(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			siftUp(state.queueIndex);
+			siftDown(state.queueIndex);
+
+			updateDonation();
+		}
+
+		/**
+		 * Make <tt>state</tt> the thread that holds the resource guarded by
+		 * this queue, moving this queue's donation from the old holder to the
+		 * new one.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null && donation >= 0)
+				owner.removeDonation(donation);
+
+			owner = state;
+
+			if (owner != null && donation >= 0)
+				owner.addDonation(donation);
+		}
+
+		/**
+		 * Recompute the priority this queue donates to its owner, which is
+		 * the effective priority of the thread at the top of the heap, and
+		 * pass any change on to the owner.
+		 */
+		private void updateDonation() {
+			if (!transferPriority)
+				return;
+
+			int newDonation = (size == 0) ? -1 : heap[0].effectivePriority;
+			if (newDonation == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = newDonation;
+
+			if (owner != null) {
+				if (oldDonation >= 0)
+					owner.removeDonation(oldDonation);
+				if (newDonation >= 0)
+					owner.addDonation(newDonation);
+			}
+		}
+
+		/**
+		 * Return <tt>true</tt> if <tt>a</tt> should leave the queue before
+		 * <tt>b</tt>.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+
+			return a.enqueueTime < b.enqueueTime;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].queueIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.queueIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].queueIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.queueIndex = index;
 		}
 
 		/**
@@ -170,6 +454,21 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		/** The number of waiting threads. */
+		private int size = 0;
+
+		/** Stamps waiters in arrival order, to break ties in priority. */
+		private long nextEnqueueTime = 0;
+
+		/** The thread holding this queue's resource, if transferring. */
+		private ThreadState owner = null;
+
+		/** The priority donated to <tt>owner</tt>, or -1 if none. */
+		private int donation = -1;
 	}
 
 	/**
@@ -189,7 +488,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			priority = priorityDefault;
+			effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -207,8 +507,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +521,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +537,9 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			waitQueue.insert(this);
 		}
 
 		/**
@@ -252,7 +553,56 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Record a donation of <tt>donated</tt> from a queue this thread
+		 * owns.
+		 */
+		void addDonation(int donated) {
+			if (donations == null)
+				donations = new int[priorityMaximum + 1];
+			donations[donated]++;
+
+			if (donated > effectivePriority)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Withdraw a donation of <tt>donated</tt> recorded by
+		 * <tt>addDonation()</tt>.
+		 */
+		void removeDonation(int donated) {
+			Lib.assertTrue(donations != null && donations[donated] > 0);
+			donations[donated]--;
+
+			if (donated == effectivePriority && donations[donated] == 0)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the base priority and the
+		 * donations received. If it changed and this thread is waiting, move
+		 * it within its queue, which in turn passes the change on to that
+		 * queue's owner.
+		 */
+		private void updateEffectivePriority() {
+			int newPriority = priority;
+			for (int p = priorityMaximum; donations != null && p > priority; p--) {
+				if (donations[p] > 0) {
+					newPriority = p;
+					break;
+				}
+			}
+
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			if (waitQueue != null)
+				((PriorityQueue) waitQueue).reposition(this);
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +610,26 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/**
+		 * The number of owned queues donating each priority level to this
+		 * thread, allocated on the first donation.
+		 */
+		private int[] donations = null;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected ThreadQueue waitQueue = null;
+
+		/**
+		 * This thread's position in <tt>waitQueue</tt>: its index in the
+		 * heap, or whatever a subclass's queue uses to find it.
+		 */
+		protected int queueIndex = -1;
+
+		/** When this thread joined <tt>waitQueue</tt>. */
+		private long enqueueTime;
 	}
 }
@@ -0,0 +1,295 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of threads hold it for reading at
+ * once, or a single thread hold it for writing.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers queue behind
+ * it, so a steady stream of readers cannot starve writers. A thread already
+ * holding the lock for reading may acquire it for reading again.
+ *
+ * <p>
+ * Priority is donated through the scheduler's <tt>transferPriority</tt>
+ * queues. Writers hold an internal <tt>Lock</tt>, through which waiting
+ * writers and blocked readers donate to the writer. A writer waiting for
+ * readers to leave donates to one of them, and the donation moves to another
+ * reader if that one leaves first.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock, initially free.
+	 */
+	public ReadWriteLock() {
+		writeLock = new Lock();
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it or is
+	 * waiting for it. The current thread must not hold it for writing.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		Integer held = readers.get(thread);
+		if (held != null) {
+			readers.put(thread, held + 1);
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		if (writer == null && writersWaiting == 0) {
+			readers.put(thread, 1);
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		// pass through the writers' lock, donating to whoever holds it
+		writeLock.acquire();
+		readers.put(thread, 1);
+		writeLock.release();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release one hold on this lock for reading. If this was the last reader
+	 * and a writer is waiting, the writer gets the lock.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		Integer held = readers.get(thread);
+		Lib.assertTrue(held != null);
+
+		if (held > 1) {
+			readers.put(thread, held - 1);
+		}
+		else {
+			readers.remove(thread);
+
+			if (draining) {
+				if (readers.isEmpty()) {
+					draining = false;
+					drainQueue.nextThread().ready();
+				}
+				else if (drainOwner == thread) {
+					// move the waiting writer's donation to a remaining reader
+					KThread waiting = drainQueue.nextThread();
+					drainOwner = readers.keySet().iterator().next();
+					drainQueue.acquire(drainOwner);
+					drainQueue.waitForAccess(waiting);
+				}
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no other thread holds it
+	 * in either mode. The current thread must not hold it in either mode.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread()
+				&& !isReadHeldByCurrentThread());
+
+		// interrupts stay disabled throughout, even while blocked in the
+		// write lock, so an uncontended write costs no more than a Lock
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		writersWaiting++;
+		writeLock.acquire();
+
+		writersWaiting--;
+		writer = thread;
+
+		if (!readers.isEmpty()) {
+			// wait for the readers to leave, donating to one of them
+			draining = true;
+			drainOwner = readers.keySet().iterator().next();
+			drainQueue.acquire(drainOwner);
+			drainQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(readers.isEmpty() && writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock from writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		writer = null;
+		writeLock.release();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading.
+	 *
+	 * @return true if the current thread holds this lock for reading.
+	 */
+	public boolean isReadHeldByCurrentThread() {
+		return readers.containsKey(KThread.currentThread());
+	}
+
+	/**
+	 * Hold the lock for reading in several threads at once, then check that
+	 * a waiting writer excludes readers, is preferred over a later reader, and
+	 * (under a priority scheduler) lends its priority to the reader it waits
+	 * for.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgReadWriteLock))
+			return;
+
+		final ReadWriteLock rw = new ReadWriteLock();
+		final int numReaders = 4;
+		final int[] active = new int[1];
+		final StringBuffer order = new StringBuffer();
+
+		// every reader holds the lock at once, and a writer sees none of them
+		final Semaphore entered = new Semaphore(0), leave = new Semaphore(0);
+		KThread[] threads = new KThread[numReaders + 1];
+		for (int i = 0; i < numReaders; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					rw.acquireRead();
+					rw.acquireRead();
+					active[0]++;
+					entered.V();
+					leave.P();
+					active[0]--;
+					rw.releaseRead();
+					rw.releaseRead();
+				}
+			}).setName("reader-" + i);
+			threads[i].fork();
+		}
+		for (int i = 0; i < numReaders; i++)
+			entered.P();
+		Lib.assertTrue(active[0] == numReaders);
+
+		threads[numReaders] = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				Lib.assertTrue(active[0] == 0);
+				KThread.yield();
+				Lib.assertTrue(active[0] == 0);
+				rw.releaseWrite();
+			}
+		}).setName("writer");
+		threads[numReaders].fork();
+		for (int i = 0; i < numReaders; i++)
+			leave.V();
+		for (KThread thread : threads)
+			thread.join();
+
+		// a reader arriving after a waiting writer goes after it
+		final Semaphore holding = new Semaphore(0), go = new Semaphore(0);
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				holding.V();
+				go.P();
+				order.append("r1 ");
+				rw.releaseRead();
+			}
+		}).setName("holder");
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				order.append("w ");
+				rw.releaseWrite();
+			}
+		}).setName("writer");
+		KThread late = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				order.append("r2 ");
+				rw.releaseRead();
+			}
+		}).setName("late reader");
+
+		boolean donates = (ThreadedKernel.scheduler.getClass()
+				== PriorityScheduler.class);
+		boolean intStatus = Machine.interrupt().disable();
+		if (donates) {
+			ThreadedKernel.scheduler.setPriority(holder,
+					PriorityScheduler.priorityMinimum);
+			ThreadedKernel.scheduler.setPriority(writer,
+					PriorityScheduler.priorityMaximum);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		// sleep, rather than yield, until the writer blocks for the holder to
+		// leave; the late reader then queues behind the write lock it holds
+		holder.fork();
+		holding.P();
+		writer.fork();
+		while (!rw.draining)
+			ThreadedKernel.alarm.waitUntil(100);
+		late.fork();
+
+		intStatus = Machine.interrupt().disable();
+		if (donates)
+			Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(holder)
+					== PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		go.V();
+		holder.join();
+		writer.join();
+		late.join();
+
+		System.out.println("ReadWriteLock: " + numReaders
+				+ " concurrent readers, order " + order.toString().trim());
+		Lib.assertTrue(order.toString().equals("r1 w r2 "));
+		System.out.println("ReadWriteLock.selfTest passed");
+	}
+
+	private static final char dbgReadWriteLock = 'g';
+
+	/** Held by the writer, and passed through by readers waiting on one. */
+	private Lock writeLock;
+
+	/** The thread holding this lock for writing, if any. */
+	private KThread writer = null;
+
+	/** Writers blocked in <tt>acquireWrite()</tt> before the write lock. */
+	private int writersWaiting = 0;
+
+	/** The threads holding this lock for reading, with their hold counts. */
+	private HashMap<KThread, Integer> readers = new HashMap<KThread, Integer>();
+
+	/** True while the writer waits in <tt>drainQueue</tt> for readers. */
+	private boolean draining = false;
+
+	/** The reader the draining writer donates to. */
+	private KThread drainOwner = null;
+
+	private ThreadQueue drainQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -1,13 +1,16 @@
 package nachos.threads;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-
 import nachos.machine.*;
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * The first thread to arrive at a tag parks in a <i>slot</i> for that tag,
+ * with a condition variable of its own, and the second thread takes the slot
+ * and wakes exactly that thread. Slots live in an open-addressing table keyed
+ * by the int tag and are recycled once the exchange completes, so an exchange
+ * costs the same however many other tags have threads waiting.
  */
 public class Rendezvous {
     /**
@@ -15,9 +18,8 @@ public class Rendezvous {
      */
     public Rendezvous () {
         this.lock = new Lock();
-        this.cv = new Condition(this.lock);
-        this.first = new HashMap<>();
-        this.second = new HashMap<>();
+        this.keys = new int[16];
+        this.slots = new Slot[16];
     }
 
     /**
@@ -38,25 +40,156 @@ public class Rendezvous {
      */
 
     public int exchange (int tag, int value) {
+        return exchange(tag, value, -1);
+    }
+
+    /**
+     * Exchange a value with another thread as in <tt>exchange(int, int)</tt>,
+     * but give up if no partner arrives within <i>timeout</i> ticks.
+     *
+     * @param tag the synchronization tag.
+     * @param value the integer to exchange.
+     * @param timeout the maximum number of ticks to wait, or a negative
+     * number to wait indefinitely.
+     * @return the partner's value, or <tt>null</tt> if the timeout elapsed
+     * first, in which case <i>value</i> is withdrawn.
+     */
+    public Integer exchange (int tag, int value, long timeout) {
+        long deadline = Machine.timer().getTime() + timeout;
+
         lock.acquire();
-        if (!first.containsKey(tag)) {
-            first.put(tag, value);
 
-            while (!second.containsKey(tag)) {
-                cv.sleep();
-            }
-            int secondVal = second.get(tag);
-            second.remove(tag);
+        Slot slot = remove(tag);
+        if (slot != null) {
+            // second to arrive: pair off with the waiting thread
+            int firstVal = slot.value;
+            slot.reply = value;
+            slot.paired = true;
+            slot.arrived.wake();
             lock.release();
-            return secondVal;
+            return firstVal;
+        }
+
+        slot = allocate();
+        slot.value = value;
+        insert(tag, slot);
+
+        while (!slot.paired) {
+            if (timeout < 0) {
+                slot.arrived.sleep();
+                continue;
+            }
+
+            long remaining = deadline - Machine.timer().getTime();
+            if (remaining <= 0) {
+                remove(tag);
+                free(slot);
+                lock.release();
+                return null;
+            }
+            slot.arrived.sleepFor(remaining);
         }
 
-        second.put(tag, value);
-        cv.wakeAll();
-        int firstVal = first.get(tag);
-        first.remove(tag);
+        int secondVal = slot.reply;
+        free(slot);
         lock.release();
-        return firstVal;
+        return secondVal;
+    }
+
+    /**
+     * A thread waiting at a tag for its partner.
+     */
+    private class Slot {
+        int value;
+
+        int reply;
+
+        boolean paired;
+
+        Condition2 arrived = new Condition2(lock);
+
+        /** The next free slot, while on the free list. */
+        Slot next;
+    }
+
+    private Slot allocate() {
+        Slot slot = freeSlots;
+        if (slot == null)
+            return new Slot();
+
+        freeSlots = slot.next;
+        slot.next = null;
+        slot.paired = false;
+        return slot;
+    }
+
+    private void free(Slot slot) {
+        slot.next = freeSlots;
+        freeSlots = slot;
+    }
+
+    private int indexOf(int tag) {
+        // spread consecutive tags across the table
+        int hash = tag * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (keys.length - 1);
+    }
+
+    private void insert(int tag, Slot slot) {
+        if (2 * (size + 1) > keys.length)
+            resize(2 * keys.length);
+
+        int index = indexOf(tag);
+        while (slots[index] != null)
+            index = (index + 1) & (keys.length - 1);
+
+        keys[index] = tag;
+        slots[index] = slot;
+        size++;
+    }
+
+    /**
+     * Remove and return the slot waiting at <i>tag</i>, or <tt>null</tt>.
+     */
+    private Slot remove(int tag) {
+        int mask = keys.length - 1;
+        int index = indexOf(tag);
+        while (slots[index] != null && keys[index] != tag)
+            index = (index + 1) & mask;
+
+        Slot slot = slots[index];
+        if (slot == null)
+            return null;
+
+        slots[index] = null;
+        size--;
+
+        // shift later entries of the probe run back into the hole
+        for (int next = (index + 1) & mask; slots[next] != null;
+                next = (next + 1) & mask) {
+            int home = indexOf(keys[next]);
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                slots[index] = slots[next];
+                slots[next] = null;
+                index = next;
+            }
+        }
+
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Slot[] oldSlots = slots;
+
+        keys = new int[capacity];
+        slots = new Slot[capacity];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != null)
+                insert(oldKeys[i], oldSlots[i]);
+        }
     }
 
     /* Test Case 1: simple test. */
@@ -305,6 +438,46 @@ public class Rendezvous {
 
     }
 
+    /**
+     * Keep <tt>Rendezvous.benchmarkTags</tt> tags (default 100) busy at
+     * once, each with a pair of threads exchanging repeatedly, and report
+     * the cost per exchange.
+     */
+    public static void benchmark() {
+        final int numTags = Config.getInteger("Rendezvous.benchmarkTags", 100);
+        final int rounds = 100;
+        final Rendezvous r = new Rendezvous();
+
+        long startTicks = Machine.timer().getTime();
+        long startTime = System.nanoTime();
+
+        // every tag's first thread parks before any partner arrives
+        KThread[] threads = new KThread[2 * numTags];
+        for (int i = 0; i < threads.length; i++) {
+            final int tag = i % numTags, side = i / numTags;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int round = 0; round < rounds; round++) {
+                        int recv = r.exchange(tag, 2 * round + side);
+                        Lib.assertTrue(recv == 2 * round + 1 - side);
+                    }
+                }
+            }).setName("tag-" + tag + "-" + side);
+            threads[i].fork();
+        }
+        for (KThread thread : threads)
+            thread.join();
+
+        long ticks = Machine.timer().getTime() - startTicks;
+        long time = System.nanoTime() - startTime;
+        long exchanges = (long) numTags * rounds;
+
+        Lib.assertTrue(r.size == 0);
+        System.out.println("Rendezvous: " + numTags + " tags, " + exchanges
+                + " exchanges, " + ticks / exchanges + " ticks and "
+                + time / exchanges + " ns per exchange");
+    }
+
     public static void selfTest() {
         Lib.debug(dbgRendezvous, "Enter Rendezvous.selfTest");
         if (Lib.test(dbgRendezvous)) {
@@ -312,6 +485,7 @@ public class Rendezvous {
             rendezTest2();
             rendezTest3();
             rendezTest4();
+            benchmark();
             System.out.println();
         }
         Lib.debug(dbgRendezvous, "End Rendezvous.selfTest\n");
@@ -319,11 +493,15 @@ public class Rendezvous {
 
     private static final char dbgRendezvous = 'r';
 
-    private Condition cv;
-
     private Lock lock;
 
-    private Map<Integer, Integer> first;
+    /** Open-addressing table of waiting slots, keyed by tag. */
+    private int[] keys;
+
+    private Slot[] slots;
+
+    private int size = 0;
 
-    private Map<Integer, Integer> second;
+    /** Slots from finished exchanges, ready for reuse. */
+    private Slot freeSlots = null;
 }
\ No newline at end of file
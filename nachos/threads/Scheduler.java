@@ -151,4 +151,36 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * just before the current thread is preempted. Schedulers that measure
+	 * time slices in timer interrupts override this; by default it does
+	 * nothing.
+	 */
+	public void timerInterrupt() {
+	}
+
+	/**
+	 * Called by <tt>KThread</tt> with interrupts disabled when the CPU is
+	 * about to pass from <i>previous</i> to <i>next</i>, which may be the same
+	 * thread. Schedulers that account for CPU time override this; by default
+	 * it does nothing.
+	 * 
+	 * @param previous the thread leaving the CPU.
+	 * @param next the thread about to run.
+	 */
+	public void dispatch(KThread previous, KThread next) {
+	}
+
+	/**
+	 * Called by <tt>KThread.finish()</tt> with interrupts disabled, once the
+	 * current thread is marked finished and before it leaves the CPU for the
+	 * last time. Schedulers that hold resources on behalf of a thread release
+	 * them here; by default it does nothing.
+	 * 
+	 * @param thread the thread that is finishing.
+	 */
+	public void threadFinished(KThread thread) {
+	}
 }
@@ -0,0 +1,353 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares schedulers on a synthetic workload.
+ *
+ * <p>
+ * Inside Nachos (<tt>nachos -d B</tt>), <tt>selfTest()</tt> replays the
+ * workload under the configured <tt>ThreadedKernel.scheduler</tt> and prints
+ * one result line. The workload runs for <tt>SchedulerBenchmark.duration</tt>
+ * ticks (default 200000) and mixes three kinds of thread:
+ * <ul>
+ * <li><tt>SchedulerBenchmark.spinners</tt> (default 4) CPU-bound threads;
+ * <li><tt>SchedulerBenchmark.sleepers</tt> (default 4) I/O-like threads that
+ * sleep in <tt>Alarm.waitUntil()</tt> for a random time and then do a little
+ * work, and which under <tt>EDFScheduler</tt> hold a real-time reservation
+ * together worth 80% of the CPU;
+ * <li><tt>SchedulerBenchmark.lockers</tt> (default 4) threads that take one
+ * shared lock, work inside it, and then sleep briefly. The first runs at a
+ * lowered priority and the rest at a raised one, so that priority inversion
+ * shows up unless the scheduler donates.
+ * </ul>
+ * It reports throughput (operations per 1000 ticks), the mean and 99th
+ * percentile of the sleepers' wait-to-run latency (ticks from the wakeup
+ * being due to the thread running), and Jain's fairness index over the work
+ * done by the spinners.
+ *
+ * <p>
+ * Since Nachos can only boot once per JVM, <tt>main()</tt> boots a fresh
+ * Nachos for each scheduler and tabulates the results:
+ *
+ * <pre>
+ * java nachos.threads.SchedulerBenchmark [-c nachos.conf] [scheduler ...]
+ * </pre>
+ *
+ * With no schedulers named, every scheduler in <tt>nachos.threads</tt> is
+ * compared.
+ */
+public class SchedulerBenchmark {
+	/**
+	 * Allocate a benchmark with the workload described by the configuration.
+	 */
+	public SchedulerBenchmark() {
+		numSpinners = Config.getInteger("SchedulerBenchmark.spinners", 4);
+		numSleepers = Config.getInteger("SchedulerBenchmark.sleepers", 4);
+		numLockers = Config.getInteger("SchedulerBenchmark.lockers", 4);
+		duration = Config.getInteger("SchedulerBenchmark.duration", 200000);
+	}
+
+	/**
+	 * Replay the workload and print the result line.
+	 */
+	public void run() {
+		final long start = Machine.timer().getTime();
+		end = start + duration;
+
+		spinnerWork = new long[numSpinners];
+		latencies = new long[numSleepers][];
+		latencyCounts = new int[numSleepers];
+		lock = new Lock();
+
+		List<KThread> threads = new ArrayList<KThread>();
+		for (int i = 0; i < numSpinners; i++)
+			threads.add(new KThread(new Spinner(i)).setName("spinner-" + i));
+		for (int i = 0; i < numSleepers; i++)
+			threads.add(new KThread(new Sleeper(i)).setName("sleeper-" + i));
+		for (int i = 0; i < numLockers; i++)
+			threads.add(new KThread(new Locker(i)).setName("locker-" + i));
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		long elapsed = Machine.timer().getTime() - start;
+
+		long ops = lockerOps;
+		double sum = 0, sumOfSquares = 0;
+		for (long work : spinnerWork) {
+			ops += work;
+			sum += work;
+			sumOfSquares += (double) work * work;
+		}
+		double fairness = (numSpinners == 0 || sumOfSquares == 0) ? 1
+				: sum * sum / (numSpinners * sumOfSquares);
+
+		int numSamples = 0;
+		for (int count : latencyCounts)
+			numSamples += count;
+		long[] samples = new long[numSamples];
+		int n = 0;
+		for (int i = 0; i < numSleepers; i++) {
+			System.arraycopy(latencies[i], 0, samples, n, latencyCounts[i]);
+			n += latencyCounts[i];
+		}
+		ops += numSamples;
+		Arrays.sort(samples);
+
+		long totalLatency = 0;
+		for (long sample : samples)
+			totalLatency += sample;
+		long meanLatency = (numSamples == 0) ? 0 : totalLatency / numSamples;
+		long p99Latency = (numSamples == 0) ? 0
+				: samples[(int) Math.ceil(0.99 * numSamples) - 1];
+
+		System.out.println(resultPrefix + " scheduler="
+				+ ThreadedKernel.scheduler.getClass().getName()
+				+ " ticks=" + elapsed + " ops=" + ops
+				+ " throughput=" + String.format("%.1f", 1000.0 * ops / elapsed)
+				+ " meanLatency=" + meanLatency
+				+ " p99Latency=" + p99Latency
+				+ " fairness=" + String.format("%.3f", fairness));
+	}
+
+	/**
+	 * Do one unit of CPU-bound work, which costs a kernel tick.
+	 */
+	private static void work() {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+	}
+
+	/**
+	 * Nudge the current thread's priority <i>steps</i> levels up (or down,
+	 * if negative), as far as the scheduler allows.
+	 */
+	private static void adjustPriority(int steps) {
+		for (; steps > 0; steps--)
+			ThreadedKernel.scheduler.increasePriority();
+		for (; steps < 0; steps++)
+			ThreadedKernel.scheduler.decreasePriority();
+	}
+
+	private class Spinner implements Runnable {
+		Spinner(int id) {
+			this.id = id;
+		}
+
+		public void run() {
+			while (Machine.timer().getTime() < end) {
+				work();
+				spinnerWork[id]++;
+			}
+		}
+
+		private int id;
+	}
+
+	private class Sleeper implements Runnable {
+		Sleeper(int id) {
+			this.id = id;
+			latencies[id] = new long[16];
+		}
+
+		public void run() {
+			adjustPriority(1);
+
+			if (ThreadedKernel.scheduler instanceof EDFScheduler) {
+				boolean intStatus = Machine.interrupt().disable();
+				Lib.assertTrue(((EDFScheduler) ThreadedKernel.scheduler)
+						.setRealTime(KThread.currentThread(), sleeperPeriod,
+								sleeperPeriod * 4 / 5 / numSleepers));
+				Machine.interrupt().restore(intStatus);
+			}
+
+			while (Machine.timer().getTime() < end) {
+				long delay = 500 + Lib.random(2500);
+				long due = Machine.timer().getTime() + delay;
+				ThreadedKernel.alarm.waitUntil(delay);
+
+				if (latencyCounts[id] == latencies[id].length)
+					latencies[id] = Arrays.copyOf(latencies[id],
+							2 * latencies[id].length);
+				latencies[id][latencyCounts[id]++] = Machine.timer().getTime()
+						- due;
+
+				for (int i = 0; i < 5; i++)
+					work();
+			}
+		}
+
+		private int id;
+	}
+
+	private class Locker implements Runnable {
+		Locker(int id) {
+			this.id = id;
+		}
+
+		public void run() {
+			// the first locker is the low-priority holder in the inversion
+			adjustPriority(id == 0 ? -1 : 2);
+
+			while (Machine.timer().getTime() < end) {
+				lock.acquire();
+				for (int i = 0; i < 20; i++)
+					work();
+				lockerOps++;
+				lock.release();
+
+				ThreadedKernel.alarm.waitUntil(100 + Lib.random(400));
+			}
+		}
+
+		private int id;
+	}
+
+	/**
+	 * Run the benchmark if <tt>-d B</tt> was given.
+	 */
+	public static void selfTest() {
+		if (Lib.test(dbgSchedulerBenchmark))
+			new SchedulerBenchmark().run();
+	}
+
+	/**
+	 * Boot Nachos once per scheduler with the benchmark enabled, and print a
+	 * table of the results. Runs outside Nachos.
+	 *
+	 * @param args <tt>[-c configFile] [scheduler ...]</tt>.
+	 */
+	public static void main(String[] args) throws Exception {
+		String configFileName = "nachos.conf";
+		List<String> schedulers = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-c") && i + 1 < args.length)
+				configFileName = args[++i];
+			else
+				schedulers.add(args[i].contains(".") ? args[i]
+						: "nachos.threads." + args[i]);
+		}
+		if (schedulers.isEmpty())
+			schedulers.addAll(Arrays.asList(allSchedulers));
+
+		List<String> baseConfig = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(configFileName));
+		for (String line; (line = reader.readLine()) != null;) {
+			String key = line.split("=")[0].trim();
+			if (!key.equals("ThreadedKernel.scheduler")
+					&& !key.equals("Kernel.kernel"))
+				baseConfig.add(line);
+		}
+		reader.close();
+
+		System.out.println(String.format("%-36s %10s %12s %11s %9s",
+				"scheduler", "ops/1000t", "mean latency", "p99 latency",
+				"fairness"));
+
+		for (String scheduler : schedulers) {
+			File config = File.createTempFile("nachos-bench", ".conf");
+			config.deleteOnExit();
+
+			PrintWriter writer = new PrintWriter(config);
+			for (String line : baseConfig)
+				writer.println(line);
+			writer.println("Kernel.kernel = nachos.threads.ThreadedKernel");
+			writer.println("ThreadedKernel.scheduler = " + scheduler);
+			writer.close();
+
+			Map<String, String> result = runNachos(config);
+			config.delete();
+
+			if (result == null) {
+				System.out.println(String.format("%-36s (failed)", scheduler));
+				continue;
+			}
+
+			System.out.println(String.format("%-36s %10s %12s %11s %9s",
+					scheduler, result.get("throughput"),
+					result.get("meanLatency"), result.get("p99Latency"),
+					result.get("fairness")));
+		}
+	}
+
+	/**
+	 * Boot Nachos in a new JVM with the specified configuration and return
+	 * the fields of its result line, or <tt>null</tt> if it printed none.
+	 */
+	private static Map<String, String> runNachos(File config) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"), "nachos.machine.Machine",
+				"-[]", config.getPath(), "-d", "" + dbgSchedulerBenchmark);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+
+		Map<String, String> result = null;
+		BufferedReader output = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		for (String line; (line = output.readLine()) != null;) {
+			int index = line.indexOf(resultPrefix);
+			if (index < 0)
+				continue;
+
+			result = new HashMap<String, String>();
+			for (String field : line.substring(index + resultPrefix.length())
+					.trim().split(" ")) {
+				String[] pair = field.split("=", 2);
+				if (pair.length == 2)
+					result.put(pair[0], pair[1]);
+			}
+		}
+		process.waitFor();
+
+		return result;
+	}
+
+	private static final String[] allSchedulers = {
+			"nachos.threads.RoundRobinScheduler",
+			"nachos.threads.PriorityScheduler",
+			"nachos.threads.LotteryScheduler",
+			"nachos.threads.MLFQScheduler",
+			"nachos.threads.FairShareScheduler",
+			"nachos.threads.EDFScheduler" };
+
+	private static final String resultPrefix = "SchedulerBenchmark:";
+
+	private static final char dbgSchedulerBenchmark = 'B';
+
+	/** The period of the sleepers' reservations under EDF, in ticks. */
+	private static final long sleeperPeriod = 1000;
+
+	private int numSpinners, numSleepers, numLockers;
+
+	private long duration;
+
+	private long end;
+
+	private long[] spinnerWork;
+
+	private long[][] latencies;
+
+	private int[] latencyCounts;
+
+	private Lock lock;
+
+	private long lockerOps = 0;
+}
@@ -28,7 +28,21 @@ public class Semaphore {
 	 * @param initialValue the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, true);
+	}
+
+	/**
+	 * Allocate a new semaphore, optionally leaving it out of the lock
+	 * profile. Used for semaphores private to other primitives, which are
+	 * profiled themselves.
+	 *
+	 * @param initialValue the initial value of this semaphore.
+	 * @param profiled <tt>false</tt> to skip contention profiling.
+	 */
+	Semaphore(int initialValue, boolean profiled) {
 		value = initialValue;
+		if (profiled)
+			profile = LockProfiler.register("Semaphore");
 	}
 
 	/**
@@ -36,8 +50,10 @@ public class Semaphore {
 	 */
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
+		long start = (profile == null) ? 0 : LockProfiler.Profile.startWait();
+		boolean contended = (value == 0);
 
-		if (value == 0) {
+		if (contended) {
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		}
@@ -45,6 +61,9 @@ public class Semaphore {
 			value--;
 		}
 
+		if (profile != null)
+			profile.acquired(start, contended);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -101,6 +120,9 @@ public class Semaphore {
 
 	private int value;
 
+	/** Contention statistics, or <tt>null</tt> if not profiling. */
+	private LockProfiler.Profile profile;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
@@ -1,25 +1,50 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * Items are kept in a ring buffer that grows as needed, up to an optional
+ * capacity beyond which <tt>add()</tt> blocks. <tt>addAll()</tt> and
+ * <tt>drainTo()</tt> move many items per lock acquisition, and producers and
+ * consumers only signal each other when someone is actually waiting.
  */
 public class SynchList<Item> {
 	/**
 	 * Allocate a new synchronized queue.
 	 */
 	public SynchList() {
-		list = new LinkedList<Item>();
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * items.
+	 * 
+	 * @param capacity the most items the queue may hold before
+	 * <tt>add()</tt> blocks.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		items = new Object[Math.min(capacity, initialSize)];
 		lock = new Lock();
-		listEmpty = new Condition(lock);
+		listEmpty = new Condition2(lock);
+		listFull = new Condition2(lock);
 	}
 
 	/**
 	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * waiting in <tt>removeFirst()</tt>, it is woken up. Blocks while the
+	 * queue is full.
 	 * 
 	 * @param i the object to add. Must not be <tt>null</tt>.
 	 */
@@ -27,8 +52,37 @@ public class SynchList<Item> {
 		Lib.assertTrue(i != null);
 
 		lock.acquire();
-		list.add(i);
-		listEmpty.wake();
+		waitForSpace();
+		append(i);
+		if (consumersWaiting > 0)
+			listEmpty.wake();
+		lock.release();
+	}
+
+	/**
+	 * Add every object in <i>c</i> to the end of the queue, in iteration
+	 * order, blocking whenever the queue is full.
+	 * 
+	 * @param c the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Collection<? extends Item> c) {
+		Iterator<? extends Item> iterator = c.iterator();
+
+		lock.acquire();
+		while (iterator.hasNext()) {
+			waitForSpace();
+
+			int added = 0;
+			while (iterator.hasNext() && count < capacity) {
+				Item i = iterator.next();
+				Lib.assertTrue(i != null);
+				append(i);
+				added++;
+			}
+
+			for (int j = 0; j < Math.min(added, consumersWaiting); j++)
+				listEmpty.wake();
+		}
 		lock.release();
 	}
 
@@ -42,14 +96,117 @@ public class SynchList<Item> {
 		Item i;
 
 		lock.acquire();
-		while (list.isEmpty())
+		consumersWaiting++;
+		while (count == 0)
 			listEmpty.sleep();
-		i = list.removeFirst();
+		consumersWaiting--;
+		i = take();
+		removed(1);
 		lock.release();
 
 		return i;
 	}
 
+	/**
+	 * Remove an object from the front of the queue, blocking for at most
+	 * <i>timeout</i> ticks until the queue is non-empty.
+	 * 
+	 * @param timeout the maximum number of ticks to wait.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was still empty when the timeout elapsed.
+	 */
+	public Item removeFirst(long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+		Item i = null;
+
+		lock.acquire();
+		consumersWaiting++;
+		while (count == 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+			listEmpty.sleepFor(remaining);
+		}
+		consumersWaiting--;
+		if (count > 0) {
+			i = take();
+			removed(1);
+		}
+		lock.release();
+
+		return i;
+	}
+
+	/**
+	 * Move up to <i>max</i> objects from the front of the queue to the end of
+	 * <i>c</i>, without blocking.
+	 * 
+	 * @param c the collection to add the objects to.
+	 * @param max the most objects to move, which must not be negative.
+	 * @return the number of objects moved.
+	 */
+	public int drainTo(Collection<? super Item> c, int max) {
+		Lib.assertTrue(max >= 0);
+
+		lock.acquire();
+		int n = Math.min(count, max);
+		for (int j = 0; j < n; j++)
+			c.add(take());
+		removed(n);
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Return the number of objects in the queue.
+	 * 
+	 * @return the number of objects in the queue.
+	 */
+	public int size() {
+		return count;
+	}
+
+	private void waitForSpace() {
+		producersWaiting++;
+		while (count == capacity)
+			listFull.sleep();
+		producersWaiting--;
+	}
+
+	private void append(Item i) {
+		if (count == items.length) {
+			// grow, unrolling the ring so that head is at index 0
+			Object[] bigger = new Object[(int) Math.min(capacity,
+					2L * items.length)];
+			int first = items.length - head;
+			System.arraycopy(items, head, bigger, 0, first);
+			System.arraycopy(items, 0, bigger, first, head);
+			items = bigger;
+			head = 0;
+		}
+
+		items[(head + count++) % items.length] = i;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Item take() {
+		Item i = (Item) items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+
+		return i;
+	}
+
+	/**
+	 * Wake the producers that <i>n</i> freed slots may unblock.
+	 */
+	private void removed(int n) {
+		for (int j = 0; j < Math.min(n, producersWaiting); j++)
+			listFull.wake();
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +237,66 @@ public class SynchList<Item> {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		if (Lib.test(dbgSynchList))
+			batchTest();
+	}
+
+	/**
+	 * Push 1000 items through a queue bounded at 16 with <tt>addAll()</tt>,
+	 * consuming them with <tt>drainTo()</tt>, and check they arrive in order.
+	 */
+	private static void batchTest() {
+		final SynchList<Integer> list = new SynchList<Integer>(16);
+		final int numItems = 1000;
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				List<Integer> batch = new ArrayList<Integer>();
+				for (int i = 0; i < numItems; i++) {
+					batch.add(i);
+					if (batch.size() == 50) {
+						list.addAll(batch);
+						batch.clear();
+					}
+				}
+				list.addAll(batch);
+			}
+		}).setName("producer");
+		producer.fork();
+
+		List<Integer> received = new ArrayList<Integer>();
+		while (received.size() < numItems) {
+			received.add(list.removeFirst());
+			Lib.assertTrue(list.size() <= 16);
+			list.drainTo(received, numItems);
+		}
+		producer.join();
+
+		for (int i = 0; i < numItems; i++)
+			Lib.assertTrue(received.get(i) == i);
+		Lib.assertTrue(list.removeFirst(100) == null);
+
+		System.out.println("SynchList.batchTest passed");
 	}
 
-	private LinkedList<Item> list;
+	private static final char dbgSynchList = 's';
+
+	private static final int initialSize = 8;
+
+	private int capacity;
+
+	/** The ring buffer: <tt>count</tt> items starting at <tt>head</tt>. */
+	private Object[] items;
+
+	private int head = 0, count = 0;
+
+	/** Threads blocked in the corresponding wait. */
+	private int consumersWaiting = 0, producersWaiting = 0;
 
 	private Lock lock;
 
-	private Condition listEmpty;
+	private Condition2 listEmpty;
+
+	private Condition2 listFull;
 }
@@ -0,0 +1,243 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmarks for <tt>KThread</tt> and the synchronization primitives.
+ * Each benchmark runs under whatever scheduler <tt>ThreadedKernel.scheduler</tt>
+ * selects, and reports both the wall-clock time and the simulated ticks spent
+ * per operation, so that scheduler and TCB changes can be compared.
+ *
+ * <p>
+ * Run with <tt>nachos -d b</tt>. The number of operations per benchmark is
+ * read from <tt>ThreadBenchmark.iterations</tt> (default 10000).
+ */
+public class ThreadBenchmark {
+	/**
+	 * Allocate a new benchmark run.
+	 *
+	 * @param iterations the number of operations each benchmark performs.
+	 */
+	public ThreadBenchmark(int iterations) {
+		Lib.assertTrue(iterations > 0);
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Run every benchmark and print one line of results for each.
+	 */
+	public void run() {
+		System.out.println("ThreadBenchmark: " + iterations + " iterations, "
+				+ ThreadedKernel.scheduler.getClass().getName());
+
+		forkJoin();
+		yieldPingPong();
+		uncontendedLock();
+		contendedLock();
+		semaphorePingPong();
+		conditionPingPong();
+		synchListThroughput();
+		synchListBatchThroughput();
+	}
+
+	private void forkJoin() {
+		start();
+		for (int i = 0; i < iterations; i++) {
+			KThread child = new KThread(new Runnable() {
+				public void run() {
+				}
+			});
+			child.setName("bench-child").fork();
+			child.join();
+		}
+		stop("fork/join", iterations);
+	}
+
+	private void yieldPingPong() {
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < iterations; i++)
+					KThread.yield();
+			}
+		}).setName("bench-yield");
+
+		start();
+		other.fork();
+		for (int i = 0; i < iterations; i++)
+			KThread.yield();
+		other.join();
+		stop("yield", 2 * iterations);
+	}
+
+	private void uncontendedLock() {
+		Lock lock = new Lock();
+
+		start();
+		for (int i = 0; i < iterations; i++) {
+			lock.acquire();
+			lock.release();
+		}
+		stop("lock (uncontended)", iterations);
+	}
+
+	private void contendedLock() {
+		final Lock lock = new Lock();
+		final int perThread = iterations / numContenders;
+		KThread[] contenders = new KThread[numContenders];
+
+		for (int i = 0; i < numContenders; i++) {
+			contenders[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						lock.acquire();
+						KThread.yield();
+						lock.release();
+					}
+				}
+			}).setName("bench-contender-" + i);
+		}
+
+		start();
+		for (int i = 0; i < numContenders; i++)
+			contenders[i].fork();
+		for (int i = 0; i < numContenders; i++)
+			contenders[i].join();
+		stop("lock (" + numContenders + " contenders)", numContenders * perThread);
+	}
+
+	private void semaphorePingPong() {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < iterations; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("bench-pong");
+
+		start();
+		other.fork();
+		for (int i = 0; i < iterations; i++) {
+			ping.V();
+			pong.P();
+		}
+		other.join();
+		stop("semaphore ping-pong", iterations);
+	}
+
+	private void conditionPingPong() {
+		final Lock lock = new Lock();
+		final Condition2 turnChanged = new Condition2(lock);
+		final int[] turn = new int[1];
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				for (int i = 0; i < iterations; i++) {
+					while (turn[0] != 1)
+						turnChanged.sleep();
+					turn[0] = 0;
+					turnChanged.wake();
+				}
+				lock.release();
+			}
+		}).setName("bench-cv");
+
+		start();
+		other.fork();
+		lock.acquire();
+		for (int i = 0; i < iterations; i++) {
+			turn[0] = 1;
+			turnChanged.wake();
+			while (turn[0] != 0)
+				turnChanged.sleep();
+		}
+		lock.release();
+		other.join();
+		stop("condition2 ping-pong", iterations);
+	}
+
+	private void synchListThroughput() {
+		final SynchList<Integer> list = new SynchList<Integer>();
+		KThread consumer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < iterations; i++)
+					list.removeFirst();
+			}
+		}).setName("bench-consumer");
+
+		start();
+		consumer.fork();
+		for (int i = 0; i < iterations; i++)
+			list.add(i);
+		consumer.join();
+		stop("synchlist add/remove", iterations);
+	}
+
+	private void synchListBatchThroughput() {
+		final SynchList<Integer> list = new SynchList<Integer>(64);
+		KThread consumer = new KThread(new Runnable() {
+			public void run() {
+				List<Integer> batch = new ArrayList<Integer>();
+				for (int received = 0; received < iterations;) {
+					batch.add(list.removeFirst());
+					list.drainTo(batch, iterations);
+					received += batch.size();
+					batch.clear();
+				}
+			}
+		}).setName("bench-consumer");
+
+		List<Integer> batch = new ArrayList<Integer>();
+		start();
+		consumer.fork();
+		for (int i = 0; i < iterations; i++) {
+			batch.add(i);
+			if (batch.size() == 32 || i == iterations - 1) {
+				list.addAll(batch);
+				batch.clear();
+			}
+		}
+		consumer.join();
+		stop("synchlist addAll/drainTo", iterations);
+	}
+
+	private void start() {
+		startNanos = System.nanoTime();
+		startTicks = Machine.timer().getTime();
+	}
+
+	private void stop(String name, int ops) {
+		long nanos = System.nanoTime() - startNanos;
+		long ticks = Machine.timer().getTime() - startTicks;
+
+		System.out.println("  " + name + ": " + ops + " ops, "
+				+ (nanos / ops) + " ns/op, "
+				+ String.format("%.1f", (double) ticks / ops) + " ticks/op");
+	}
+
+	/**
+	 * Run the benchmarks if <tt>-d b</tt> was given.
+	 */
+	public static void selfTest() {
+		if (Lib.test(dbgBenchmark)) {
+			int iterations = Config.getInteger("ThreadBenchmark.iterations",
+					10000);
+			new ThreadBenchmark(iterations).run();
+		}
+	}
+
+	private static final char dbgBenchmark = 'b';
+
+	private static final int numContenders = 4;
+
+	private int iterations;
+
+	private long startNanos;
+
+	private long startTicks;
+}
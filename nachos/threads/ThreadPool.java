@@ -0,0 +1,239 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.function.IntSupplier;
+
+/**
+ * A fixed set of worker <tt>KThread</tt>s that run <tt>IntSupplier</tt> tasks
+ * and complete a <tt>Future</tt> for each.
+ *
+ * <p>
+ * A <tt>Future</tt> built directly from a function forks a new
+ * <tt>KThread</tt>, and with it a new <tt>TCB</tt> and Java thread, for every
+ * task. A pool forks its workers once, and each worker takes tasks from a
+ * shared queue, one at a time, until the pool is shut down, so a task costs
+ * only a queue operation and, at most, one context switch. Tasks that have
+ * not started stay in the shared queue, so a task that blocks, even on
+ * another task's future, never holds up work an idle worker could run.
+ */
+public class ThreadPool {
+	/**
+	 * Allocate a pool of <tt>ThreadPool.workers</tt> workers (default 4).
+	 */
+	public ThreadPool() {
+		this(Config.getInteger("ThreadPool.workers", 4));
+	}
+
+	/**
+	 * Allocate a pool and fork its workers.
+	 *
+	 * @param numWorkers the number of worker threads.
+	 */
+	public ThreadPool(int numWorkers) {
+		Lib.assertTrue(numWorkers > 0);
+
+		lock = new Lock();
+		taskReady = new Condition2(lock);
+
+		workers = new KThread[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new KThread(new Worker()).setName("pool-worker-" + i);
+			workers[i].fork();
+		}
+	}
+
+	/**
+	 * Queue a task for the next free worker.
+	 *
+	 * @param task the function to run.
+	 * @return a future for the task's result.
+	 */
+	public Future submit(IntSupplier task) {
+		return submitAll(new IntSupplier[] { task })[0];
+	}
+
+	/**
+	 * Queue several tasks with a single lock acquisition.
+	 *
+	 * @param tasks the functions to run.
+	 * @return a future for each task's result, in the same order.
+	 */
+	public Future[] submitAll(IntSupplier[] tasks) {
+		Future[] futures = new Future[tasks.length];
+
+		lock.acquire();
+		Lib.assertTrue(!shutdown);
+
+		for (int i = 0; i < tasks.length; i++) {
+			futures[i] = new Future();
+			queue.add(new Task(tasks[i], futures[i]));
+		}
+		for (int i = 0; i < Math.min(tasks.length, idleWorkers); i++)
+			taskReady.wake();
+
+		lock.release();
+		return futures;
+	}
+
+	/**
+	 * Run every task and wait for all of them to complete.
+	 *
+	 * @param tasks the functions to run.
+	 * @return each task's result, in the same order.
+	 */
+	public int[] invokeAll(IntSupplier[] tasks) {
+		Future[] futures = submitAll(tasks);
+
+		int[] results = new int[tasks.length];
+		for (int i = 0; i < tasks.length; i++)
+			results[i] = futures[i].get();
+
+		return results;
+	}
+
+	/**
+	 * Stop accepting tasks, let the workers finish the ones already queued,
+	 * and wait for the workers to exit.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		shutdown = true;
+		taskReady.wakeAll();
+		lock.release();
+
+		for (KThread worker : workers)
+			worker.join();
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			while (true) {
+				lock.acquire();
+				idleWorkers++;
+				while (queue.isEmpty() && !shutdown)
+					taskReady.sleep();
+				idleWorkers--;
+
+				Task task = queue.poll();
+				lock.release();
+
+				if (task == null)
+					return;
+
+				task.future.complete(task.function.getAsInt());
+			}
+		}
+	}
+
+	private static class Task {
+		Task(IntSupplier function, Future future) {
+			this.function = function;
+			this.future = future;
+		}
+
+		IntSupplier function;
+
+		Future future;
+	}
+
+	/**
+	 * Run the same fan-out job with a fresh <tt>KThread</tt> per task and
+	 * with a pool, and compare, if <tt>-d x</tt> was given.
+	 */
+	public static void selfTest() {
+		if (!Lib.test(dbgThreadPool))
+			return;
+
+		// several waiters, and a timed get that expires before completion
+		final Future slow = new Future(() -> {
+			ThreadedKernel.alarm.waitUntil(5000);
+			return 7;
+		});
+		KThread[] waiters = new KThread[3];
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread(() -> Lib.assertTrue(slow.get() == 7))
+					.setName("waiter-" + i);
+			waiters[i].fork();
+		}
+		Lib.assertTrue(slow.get(1000) == null && !slow.isDone());
+		Lib.assertTrue(slow.get(10000) == 7 && slow.get() == 7);
+		for (KThread waiter : waiters)
+			waiter.join();
+		Lib.assertTrue(Machine.interrupt().enabled());
+
+		// a task waiting on the task queued right behind it must not hold
+		// that task back
+		final ThreadPool chained = new ThreadPool();
+		final Future[][] chain = new Future[1][];
+		final Semaphore submitted = new Semaphore(0);
+		IntSupplier[] linked = new IntSupplier[8];
+		for (int i = 0; i < linked.length; i++) {
+			final int n = i;
+			linked[i] = () -> n;
+		}
+		linked[0] = () -> {
+			submitted.P();
+			return chain[0][1].get() + 1;
+		};
+		chain[0] = chained.submitAll(linked);
+		submitted.V();
+		Lib.assertTrue(chain[0][0].get() == 2);
+		chained.shutdown();
+
+		final int numTasks = 2000, wave = 100;
+		IntSupplier[] tasks = new IntSupplier[numTasks];
+		for (int i = 0; i < numTasks; i++) {
+			final int n = i;
+			tasks[i] = () -> n * n;
+		}
+
+		long startTicks = Machine.timer().getTime();
+		long startTime = System.nanoTime();
+		// in waves, to stay under the TCB limit
+		for (int i = 0; i < numTasks; i += wave) {
+			Future[] futures = new Future[wave];
+			for (int j = 0; j < wave; j++)
+				futures[j] = new Future(tasks[i + j]);
+			for (int j = 0; j < wave; j++)
+				Lib.assertTrue(futures[j].get() == (i + j) * (i + j));
+		}
+		long forkTicks = Machine.timer().getTime() - startTicks;
+		long forkTime = System.nanoTime() - startTime;
+
+		startTicks = Machine.timer().getTime();
+		startTime = System.nanoTime();
+		ThreadPool pool = new ThreadPool();
+		int[] results = pool.invokeAll(tasks);
+		pool.shutdown();
+		long poolTicks = Machine.timer().getTime() - startTicks;
+		long poolTime = System.nanoTime() - startTime;
+
+		for (int i = 0; i < numTasks; i++)
+			Lib.assertTrue(results[i] == i * i);
+
+		Lib.assertTrue(Machine.interrupt().enabled());
+
+		System.out.println("ThreadPool: " + numTasks + " tasks, thread per task "
+				+ forkTicks + " ticks " + forkTime / 1000000 + " ms, pool of "
+				+ pool.workers.length + " " + poolTicks + " ticks " + poolTime
+				/ 1000000 + " ms");
+		System.out.println("ThreadPool.selfTest passed");
+	}
+
+	private static final char dbgThreadPool = 'x';
+
+	private KThread[] workers;
+
+	private Lock lock;
+
+	/** Signalled when a task is queued or the pool shuts down. */
+	private Condition2 taskReady;
+
+	private ArrayDeque<Task> queue = new ArrayDeque<Task>();
+
+	private int idleWorkers = 0;
+
+	private boolean shutdown = false;
+}
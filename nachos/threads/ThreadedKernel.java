@@ -54,7 +54,18 @@ public class ThreadedKernel extends Kernel {
         KThread.selfTest(); // nachos -d j to enable Join tests, nachos -d jt to show log
 
 		Semaphore.selfTest();
-		SynchList.selfTest();
+		SynchList.selfTest(); // nachos -d s to also test bounded batches
+		Communicator.selfTest(); // nachos -d q to test the communicator
+		ThreadPool.selfTest(); // nachos -d x to test futures and the pool
+		ReadWriteLock.selfTest(); // nachos -d g to test reader-writer locks
+		Interrupt.selfTest(); // nachos -d e to test the pending interrupt queue
+		ThreadBenchmark.selfTest(); // nachos -d b to benchmark threads and locks
+		PriorityScheduler.selfTest(); // nachos -d P to test priority donation
+		LotteryScheduler.selfTest(); // nachos -d L to test ticket transfer
+		MLFQScheduler.selfTest(); // nachos -d f to test the feedback queues
+		FairShareScheduler.selfTest(); // nachos -d V to test fair sharing
+		EDFScheduler.selfTest(); // nachos -d D to test real-time scheduling
+		SchedulerBenchmark.selfTest(); // nachos -d B to benchmark this scheduler
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -75,6 +86,18 @@ public class ThreadedKernel extends Kernel {
 		Machine.halt();
 	}
 
+	/**
+	 * Print the run-queue wait and time-slice histograms, if <tt>-d k</tt>
+	 * was given, and the lock contention profile, if <tt>-d w</tt> was given.
+	 */
+	public void printStats() {
+		if (Lib.test(dbgThreadStats))
+			KThread.printStats();
+		LockProfiler.print();
+	}
+
+	private static final char dbgThreadStats = 'k';
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
@@ -93,7 +116,7 @@ public class ThreadedKernel extends Kernel {
 
 	private static Condition2 dummy4 = null;
 
-    //private static Communicator dummy5 = null;
+	private static Communicator dummy5 = null;
 
 	private static Rider dummy6 = null;
 
@@ -0,0 +1,123 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of durations in ticks, with power-of-two buckets. Bucket 0
+ * counts durations of 0 ticks, and bucket <i>b</i> &gt; 0 counts durations
+ * from 2<sup><i>b</i>-1</sup> to 2<sup><i>b</i></sup>-1 ticks.
+ */
+public class TickHistogram {
+	/**
+	 * Allocate a new, empty histogram.
+	 *
+	 * @param name the name printed with the histogram.
+	 */
+	public TickHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Record one duration.
+	 *
+	 * @param ticks the duration, which must not be negative.
+	 */
+	public void add(long ticks) {
+		Lib.assertTrue(ticks >= 0);
+
+		buckets[64 - Long.numberOfLeadingZeros(ticks)]++;
+		count++;
+		total += ticks;
+		max = Math.max(max, ticks);
+	}
+
+	/**
+	 * Return the number of durations recorded.
+	 *
+	 * @return the number of durations recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the mean of the durations recorded.
+	 *
+	 * @return the mean duration, or 0 if none were recorded.
+	 */
+	public long getMean() {
+		return (count == 0) ? 0 : total / count;
+	}
+
+	/**
+	 * Return the longest duration recorded.
+	 *
+	 * @return the longest duration, or 0 if none were recorded.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return an upper bound on the specified percentile: the top of the
+	 * bucket it falls in, or the maximum if that is lower.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return an upper bound on the percentile, in ticks.
+	 */
+	public long getPercentile(double percentile) {
+		Lib.assertTrue(percentile >= 0 && percentile <= 100);
+
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < buckets.length; bucket++) {
+			seen += buckets[bucket];
+			if (seen >= rank && seen > 0)
+				return Math.min(bucketTop(bucket), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Return the number of durations in the specified bucket.
+	 *
+	 * @param bucket the bucket, from 0 to 64.
+	 * @return the number of durations in the bucket.
+	 */
+	public long getBucket(int bucket) {
+		return buckets[bucket];
+	}
+
+	/**
+	 * Print a summary line followed by one line per non-empty bucket.
+	 */
+	public void print() {
+		System.out.println(name + ": count " + count + ", mean " + getMean()
+				+ ", p50 " + getPercentile(50) + ", p99 " + getPercentile(99)
+				+ ", max " + max);
+
+		for (int bucket = 0; bucket < buckets.length; bucket++) {
+			if (buckets[bucket] == 0)
+				continue;
+
+			long bottom = (bucket == 0) ? 0 : 1L << (bucket - 1);
+			System.out.println("  " + bottom + ".." + bucketTop(bucket) + ": "
+					+ buckets[bucket]);
+		}
+	}
+
+	private static long bucketTop(int bucket) {
+		return (bucket == 0) ? 0 : (1L << bucket) - 1;
+	}
+
+	private String name;
+
+	private long[] buckets = new long[65];
+
+	private long count = 0;
+
+	private long total = 0;
+
+	private long max = 0;
+}
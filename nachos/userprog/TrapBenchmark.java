@@ -0,0 +1,200 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A trap-path benchmark that runs without the MIPS cross-compiler. It builds
+ * the same program as <tt>test/trapbench.c</tt> directly as machine code,
+ * writes it to the file system as a COFF executable, and runs it as the only
+ * user process: first a loop of <tt>close(-1)</tt> syscalls, then sweeps over
+ * an uninitialized section one byte per page, so that under demand paging
+ * nearly every access faults.
+ *
+ * <p>
+ * Run with <tt>nachos -d uT</tt> from a <tt>VMKernel</tt> configuration with
+ * few physical pages. The process exits when it is done, which halts the
+ * machine, and the <tt>T</tt> flag makes <tt>Stats</tt> report syscalls and
+ * page faults per second. The loop counts are read from
+ * <tt>TrapBenchmark.syscalls</tt> (default 200000) and
+ * <tt>TrapBenchmark.sweeps</tt> (default 400).
+ */
+public class TrapBenchmark {
+	/**
+	 * Allocate a new benchmark run.
+	 *
+	 * @param syscalls the number of syscalls the program makes.
+	 * @param sweeps the number of times the program sweeps its pages.
+	 */
+	public TrapBenchmark(int syscalls, int sweeps) {
+		Lib.assertTrue(syscalls > 0 && sweeps > 0);
+		this.syscalls = syscalls;
+		this.sweeps = sweeps;
+	}
+
+	/**
+	 * Write the program out and run it. Does not return if the program
+	 * starts, since the machine halts when it exits.
+	 */
+	public void run() {
+		System.out.println("TrapBenchmark: " + syscalls + " syscalls, "
+				+ sweeps + " sweeps of " + numPages + " pages");
+
+		byte[] executable = assemble();
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		Lib.assertTrue(file != null
+				&& file.write(0, executable, 0, executable.length) == executable.length);
+		file.close();
+
+		UserProcess process = UserProcess.newUserProcess();
+		boolean started = process.execute(fileName, new String[] {});
+		ThreadedKernel.fileSystem.remove(fileName);
+		Lib.assertTrue(started);
+
+		process.thread.join();
+	}
+
+	/**
+	 * Return the benchmark as a COFF executable with a text section at
+	 * address 0 and an uninitialized data section on the following page.
+	 */
+	private byte[] assemble() {
+		int[] text = {
+			lui(s0, syscalls >>> 16),
+			ori(s0, s0, syscalls & 0xFFFF),
+			// loop: close(-1)
+			addiu(v0, zero, syscallClose),
+			addiu(a0, zero, -1),
+			syscall,
+			addiu(s0, s0, -1),
+			bgtz(s0, -5),
+			nop,
+			lui(s1, dataStart >>> 16),
+			ori(s1, s1, dataStart & 0xFFFF),
+			lui(s2, sweeps >>> 16),
+			ori(s2, s2, sweeps & 0xFFFF),
+			// sweep: one read-modify-write per page
+			addu(t0, s1, zero),
+			addiu(t1, zero, numPages),
+			lb(t2, t0),
+			nop,
+			addu(t2, t2, s2),
+			sb(t2, t0),
+			addiu(t1, t1, -1),
+			bgtz(t1, -6),
+			addiu(t0, t0, pageSize), // delay slot
+			addiu(s2, s2, -1),
+			bgtz(s2, -11),
+			nop,
+			// exit(0)
+			addiu(v0, zero, syscallExit),
+			addu(a0, zero, zero),
+			syscall,
+			nop,
+		};
+
+		int headersLength = headerLength + aoutHeaderLength + 2
+				* sectionHeaderLength;
+		byte[] coff = new byte[headersLength + text.length * 4];
+
+		Lib.bytesFromShort(coff, 0, (short) 0x0162);
+		Lib.bytesFromShort(coff, 2, (short) 2);
+		Lib.bytesFromShort(coff, 16, (short) aoutHeaderLength);
+		Lib.bytesFromShort(coff, 18, (short) 0x0003);
+		Lib.bytesFromInt(coff, headerLength + 16, 0);
+
+		int offset = headerLength + aoutHeaderLength;
+		section(coff, offset, ".text", 0, text.length * 4, headersLength,
+				0x0020);
+		section(coff, offset + sectionHeaderLength, ".bss", dataStart,
+				numPages * pageSize, 0, 0x0080);
+
+		for (int i = 0; i < text.length; i++)
+			Lib.bytesFromInt(coff, headersLength + i * 4, text[i]);
+
+		return coff;
+	}
+
+	private static void section(byte[] coff, int offset, String name,
+			int vaddr, int size, int contentOffset, int flags) {
+		for (int i = 0; i < name.length(); i++)
+			coff[offset + i] = (byte) name.charAt(i);
+		Lib.bytesFromInt(coff, offset + 8, vaddr);
+		Lib.bytesFromInt(coff, offset + 12, vaddr);
+		Lib.bytesFromInt(coff, offset + 16, size);
+		Lib.bytesFromInt(coff, offset + 20, contentOffset);
+		Lib.bytesFromInt(coff, offset + 36, flags);
+	}
+
+	private static int rType(int rs, int rt, int rd, int funct) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | funct;
+	}
+
+	private static int iType(int op, int rs, int rt, int imm) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xFFFF);
+	}
+
+	private static int addu(int rd, int rs, int rt) {
+		return rType(rs, rt, rd, 0x21);
+	}
+
+	private static int addiu(int rt, int rs, int imm) {
+		return iType(0x09, rs, rt, imm);
+	}
+
+	private static int ori(int rt, int rs, int imm) {
+		return iType(0x0D, rs, rt, imm);
+	}
+
+	private static int lui(int rt, int imm) {
+		return iType(0x0F, 0, rt, imm);
+	}
+
+	private static int lb(int rt, int base) {
+		return iType(0x20, base, rt, 0);
+	}
+
+	private static int sb(int rt, int base) {
+		return iType(0x28, base, rt, 0);
+	}
+
+	/** A branch <i>delta</i> instructions from its delay slot. */
+	private static int bgtz(int rs, int delta) {
+		return iType(0x07, rs, 0, delta);
+	}
+
+	/**
+	 * Run the benchmark if <tt>-d u</tt> is given.
+	 */
+	public static void selfTest() {
+		if (Lib.test(dbgBenchmark)) {
+			int syscalls = Config.getInteger("TrapBenchmark.syscalls", 200000);
+			int sweeps = Config.getInteger("TrapBenchmark.sweeps", 400);
+			new TrapBenchmark(syscalls, sweeps).run();
+		}
+	}
+
+	private static final int zero = 0, v0 = 2, a0 = 4, t0 = 8, t1 = 9,
+			t2 = 10, s0 = 16, s1 = 17, s2 = 18;
+
+	private static final int nop = 0, syscall = 0x0C;
+
+	private static final int syscallExit = 1, syscallClose = 8;
+
+	private static final int headerLength = 20, aoutHeaderLength = 28,
+			sectionHeaderLength = 40;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final int numPages = 64;
+
+	private static final int dataStart = pageSize;
+
+	private static final String fileName = "trapbench-gen.coff";
+
+	private static final char dbgBenchmark = 'u';
+
+	private int syscalls;
+
+	private int sweeps;
+}
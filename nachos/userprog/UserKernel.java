@@ -29,7 +29,7 @@ public class UserKernel extends ThreadedKernel {
 
         lock = new Lock();
         pidLock = new Lock();
-        numProcessLock = new Lock();
+        numProcessLock = new ReadWriteLock();
 
         int numPhysPages = Machine.processor().getNumPhysPages();
         for (int i = 0; i < numPhysPages; i += 1) {
@@ -62,6 +62,8 @@ public class UserKernel extends ThreadedKernel {
         */
         
 		System.out.println("");
+
+		TrapBenchmark.selfTest(); // nachos -d uT to benchmark the trap path
 	}
 
 	/**
@@ -170,32 +172,38 @@ public class UserKernel extends ThreadedKernel {
      * increment the total num of proccesses.
      */
     public static void incrementProcess() {
-        numProcessLock.acquire();
+        numProcessLock.acquireWrite();
         numProcess += 1;
-        numProcessLock.release();
+        numProcessLock.releaseWrite();
     }
     
     /**
      * decrement the total num of proccesses.
      */
     public static void decrementProcess() {
-        numProcessLock.acquire();
+        numProcessLock.acquireWrite();
         numProcess -= 1;
-        numProcessLock.release();
+        numProcessLock.releaseWrite();
     }
 
     /**
      * @return the number of process.
      */
     public static int getNumProcess() {
-        return numProcess;
+        numProcessLock.acquireRead();
+        int rst = numProcess;
+        numProcessLock.releaseRead();
+        return rst;
     }
 
     /**
      * @return if there is only one process left.
      */
     public static boolean isLastProcess() {
-        return numProcess == 0;
+        numProcessLock.acquireRead();
+        boolean rst = (numProcess == 0);
+        numProcessLock.releaseRead();
+        return rst;
     }
 
 	/** Globally accessible reference to the synchronized console. */
@@ -210,7 +218,8 @@ public class UserKernel extends ThreadedKernel {
 
     private static Lock pidLock;
 
-    private static Lock numProcessLock;
+    /** Taken for writing to change numProcess, and for reading to look at it. */
+    private static ReadWriteLock numProcessLock;
 
     private static int PIDCount = 0;
 
@@ -157,18 +157,16 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
         if (vaddr < 0 || vaddr >= numPages * pageSize) {
             return 0;
         }
 
 		int amount = Math.min(length, numPages * pageSize - vaddr);
 
-		return readVMWithPT(memory, vaddr, data, offset, amount);
+		return readVMWithPT(vaddr, data, offset, amount);
 	}
 
-	private int readVMWithPT(byte[] memory, int vaddr, byte[] data, int offset, int amount) {
+	private int readVMWithPT(int vaddr, byte[] data, int offset, int amount) {
 		int currentVa = vaddr;
 		int totalRead = 0;
 		while (currentVa < vaddr + amount) {
@@ -183,13 +181,13 @@ public class UserProcess {
             //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\tvirtual address " + vaddr + ", physical address " + paddr + ", offset " + addrOffset);
 			if (nextVa < vaddr + amount) { // reach the end of page
 				int toRead = pageSize - addrOffset;
-				System.arraycopy(memory, paddr, data, offset, toRead);
+				Machine.processor().copyFromMemory(paddr, data, offset, toRead);
 				offset += toRead;
 				totalRead += toRead;
                 //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\tread from vpn " + vpn + " / ppn " + ppn + " to buffer " + toRead + " bytes");
 			} else { // will not reach the end of page
                 int toRead = vaddr + amount - currentVa;
-				System.arraycopy(memory, paddr, data, offset, toRead);
+				Machine.processor().copyFromMemory(paddr, data, offset, toRead);
 				offset += toRead;
 				totalRead += toRead;
                 //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\tread from vpn " + vpn + " / ppn " + ppn + " to buffer " + toRead + " bytes");
@@ -229,18 +227,16 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
 		if (vaddr < 0 || vaddr >= numPages * pageSize) {
 			return 0;
         }
 
 		int amount = Math.min(length, numPages * pageSize - vaddr);
 
-		return writeVMWithPT(data, offset, memory, vaddr, amount);
+		return writeVMWithPT(data, offset, vaddr, amount);
 	}
 
-	private int writeVMWithPT(byte[] data, int offset, byte[] memory, int vaddr, int amount) {
+	private int writeVMWithPT(byte[] data, int offset, int vaddr, int amount) {
 		int currentVa = vaddr;
 		int totalWrite = 0;
 		while (currentVa < vaddr + amount) {
@@ -255,13 +251,13 @@ public class UserProcess {
             //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\tvirtual address " + vaddr + ", physical address " + paddr + ", offset " + addrOffset);
 			if (nextVa < vaddr + amount) { // reach the end of page
 				int toWrite = pageSize - addrOffset;
-				System.arraycopy(data, offset, memory, paddr, toWrite);
+				Machine.processor().copyToMemory(data, offset, paddr, toWrite);
 				offset += toWrite;
 				totalWrite += toWrite;
                 //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\twrite from vpn " + vpn + " / ppn " + ppn + " to buffer " + toWrite + " bytes");
 			} else { // will not reach the end of page
                 int toWrite = vaddr + amount - currentVa;
-				System.arraycopy(data, offset, memory, paddr, toWrite);
+				Machine.processor().copyToMemory(data, offset, paddr, toWrite);
 				offset += toWrite;
 				totalWrite += toWrite;
                 //Lib.debug(dbgProcess,  "PID[" + PID + "]:" + "\twrite from vpn " + vpn + " / ppn " + ppn + " to buffer " + toWrite + " bytes");
@@ -423,6 +419,7 @@ public class UserProcess {
             pageTable[i] = null;
             UserKernel.deallocate(ppn);
         }
+        Machine.processor().invalidateTranslations();
 	}
 
     /**
@@ -29,8 +29,8 @@ public class VMKernel extends UserKernel {
 		super.initialize(args);
         invertedPageTable = new InvertedPageTableEntry[numPhysPages];
         swapLock = new Lock();
-        pinLock = new Lock();
-        allPinned = new Condition(pinLock);
+        tableLock = new ReadWriteLock();
+        unpinned = new Semaphore(0);
 	}
 
 	/**
@@ -75,8 +75,10 @@ public class VMKernel extends UserKernel {
         } else {
             pageNum = freePageList.removeFirst();
         }
+        tableLock.acquireWrite();
         invertedPageTable[pageNum] = new InvertedPageTableEntry(process, vpn);
         Lib.debug(dbgVM, "VMKernel: assign a physical page ppn " + pageNum + " to PID[" + invertedPageTable[pageNum].process.getPID() + "]'s vpn " + invertedPageTable[pageNum].vpn);
+        tableLock.releaseWrite();
         lock.release();
         return pageNum;
     }
@@ -88,7 +90,9 @@ public class VMKernel extends UserKernel {
     public static void deallocate(int ppn) {
         lock.acquire();
         freePageList.addLast(ppn);
+        tableLock.acquireWrite();
         invertedPageTable[ppn] = null;
+        tableLock.releaseWrite();
         Lib.debug(dbgVM, "VMKernel: deallocate a physical page ppn " + ppn);
         lock.release();
     }
@@ -97,18 +101,18 @@ public class VMKernel extends UserKernel {
      * Evict a physical page and return the ecvicted physical page number.
      * Find the owner process and invalid the page table entry,
      * if the evicted page is dirty, write back to the disk and set the entry's ppn to the spn, set -1 otherwise.
+     * Called with lock held, and only reads the inverted page table, so it holds tableLock for reading;
+     * pinning and unpinning wait until the victim has been written back.
      * @return the evicted physical page number.
      */
     private static int evict() {
-        pinLock.acquire();
+        tableLock.acquireRead();
         Lib.debug(dbgVM, "VMKernel: insufficient physical memory, evicting...");
         while (numPinned == numPhysPages) {
             Lib.debug(dbgVM, "VMKernel: all pages are pinned, waiting...");
-            try {
-                allPinned.wait();
-            } catch (Exception exception) {
-                System.out.println(exception.getMessage());
-            }
+            tableLock.releaseRead();
+            unpinned.P();
+            tableLock.acquireRead();
         }
         int toEvict;
         while (true) {
@@ -133,7 +137,7 @@ public class VMKernel extends UserKernel {
                 process.unsetUsed(vpn);
             }
         }
-        pinLock.release();
+        tableLock.releaseRead();
         return toEvict;
     }
 
@@ -176,8 +180,7 @@ public class VMKernel extends UserKernel {
      */
     private static void writeToSwapFile(int ppn, int spn) {
         Lib.debug(dbgVM, "VMKernel: write from physical memory ppn " + ppn + " to swap file spn " + spn);
-        byte[] memory = Machine.processor().getMemory();
-        int written = swapFile.write(spn * pageSize, memory, ppn * pageSize, pageSize);
+        int written = Machine.processor().writeMemoryToFile(swapFile, spn * pageSize, ppn * pageSize, pageSize);
         if (written != pageSize) {
             Lib.debug(dbgVM, "VMKernel: write to swap file less than " + pageSize + " bytes");
         }
@@ -190,8 +193,7 @@ public class VMKernel extends UserKernel {
      */
     public static void readFromSwapFile(int ppn, int spn) {
         Lib.debug(dbgVM, "VMKernel: read from swap file spn " + spn + " to physical memory ppn " + ppn);
-        byte[] memory = Machine.processor().getMemory();
-        int read = swapFile.read(spn * pageSize, memory, ppn * pageSize, pageSize);
+        int read = Machine.processor().readFileToMemory(swapFile, spn * pageSize, ppn * pageSize, pageSize);
         if (read != pageSize) {
             Lib.debug(dbgVM, "VMKernel: read from swap file less than " + pageSize + " bytes");
         }
@@ -222,20 +224,22 @@ public class VMKernel extends UserKernel {
     }
 
     public static void pinPage(int ppn) {
-        pinLock.acquire();
+        tableLock.acquireWrite();
         invertedPageTable[ppn].pinned = true;
         numPinned += 1;
         Lib.debug(dbgVM, "VMKernel: pinned page " + ppn + " total pinned " + numPinned);
-        pinLock.release();
+        tableLock.releaseWrite();
     }
 
     public static void unpinPage(int ppn) {
-        pinLock.acquire();
+        tableLock.acquireWrite();
         invertedPageTable[ppn].pinned = false;
         numPinned -= 1;
         Lib.debug(dbgVM, "VMKernel: unpinned page " + ppn + " total pinned " + numPinned);
-        allPinned.wake();
-        pinLock.release();
+        if (numPinned == numPhysPages - 1) {
+            unpinned.V();
+        }
+        tableLock.releaseWrite();
     }
 
     private static OpenFile swapFile = null;
@@ -248,11 +252,17 @@ public class VMKernel extends UserKernel {
 
     private static InvertedPageTableEntry[] invertedPageTable;
 
-    private static int victim = 0;
+    /**
+     * Guards invertedPageTable, including the pinned flags, and numPinned.
+     * Written by allocate, deallocate, pinPage and unpinPage, and read by the evict scan.
+     * Always taken after lock.
+     */
+    private static ReadWriteLock tableLock;
 
-    private static Condition allPinned;
+    /** V'd when a page is unpinned while every page was pinned. */
+    private static Semaphore unpinned;
 
-    private static Lock pinLock;
+    private static int victim = 0;
 
     private static int numPinned = 0;
 
@@ -5,7 +5,6 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.util.Arrays;
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -80,6 +79,7 @@ public class VMProcess extends UserProcess {
             }
             pageTable[i] = null;
         }
+        Machine.processor().invalidateTranslations();
     }
 
 	/**
@@ -101,18 +101,16 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
         if (vaddr < 0 || vaddr >= numPages * pageSize) {
             return 0;
         }
 
 		int amount = Math.min(length, numPages * pageSize - vaddr);
 
-		return readVMWithPT(memory, vaddr, data, offset, amount);
+		return readVMWithPT(vaddr, data, offset, amount);
 	}
 
-    private int readVMWithPT(byte[] memory, int vaddr, byte[] data, int offset, int amount) {
+    private int readVMWithPT(int vaddr, byte[] data, int offset, int amount) {
 		int currentVa = vaddr;
 		int totalRead = 0;
 		while (currentVa < vaddr + amount) {
@@ -130,12 +128,12 @@ public class VMProcess extends UserProcess {
 			int nextVa = pageSize * (vpn + 1);
 			if (nextVa < vaddr + amount) { // reach the end of page
 				int toRead = pageSize - addrOffset;
-				System.arraycopy(memory, paddr, data, offset, toRead);
+				Machine.processor().copyFromMemory(paddr, data, offset, toRead);
 				offset += toRead;
 				totalRead += toRead;
 			} else { // will not reach the end of page
                 int toRead = vaddr + amount - currentVa;
-				System.arraycopy(memory, paddr, data, offset, toRead);
+				Machine.processor().copyFromMemory(paddr, data, offset, toRead);
 				offset += toRead;
 				totalRead += toRead;
 			}
@@ -165,18 +163,16 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
 		if (vaddr < 0 || vaddr >= numPages * pageSize) {
 			return 0;
         }
 
 		int amount = Math.min(length, numPages * pageSize - vaddr);
 
-		return writeVMWithPT(data, offset, memory, vaddr, amount);
+		return writeVMWithPT(data, offset, vaddr, amount);
 	}
 
-	private int writeVMWithPT(byte[] data, int offset, byte[] memory, int vaddr, int amount) {
+	private int writeVMWithPT(byte[] data, int offset, int vaddr, int amount) {
 		int currentVa = vaddr;
 		int totalWrite = 0;
 		while (currentVa < vaddr + amount) {
@@ -199,12 +195,12 @@ public class VMProcess extends UserProcess {
 			int nextVa = pageSize * (vpn + 1);
 			if (nextVa < vaddr + amount) { // reach the end of page
 				int toWrite = pageSize - addrOffset;
-				System.arraycopy(data, offset, memory, paddr, toWrite);
+				Machine.processor().copyToMemory(data, offset, paddr, toWrite);
 				offset += toWrite;
 				totalWrite += toWrite;
 			} else { // will not reach the end of page
                 int toWrite = vaddr + amount - currentVa;
-				System.arraycopy(data, offset, memory, paddr, toWrite);
+				Machine.processor().copyToMemory(data, offset, paddr, toWrite);
 				offset += toWrite;
 				totalWrite += toWrite;
 			}
@@ -240,8 +236,7 @@ public class VMProcess extends UserProcess {
                 }
             } else {
                 Lib.debug(dbgVM, "PID[" + PID + "]:" + "\tpage fault, initializing stack");
-                byte[] memory = Machine.processor().getMemory();
-                Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+                Machine.processor().zeroMemory(ppn * pageSize, pageSize);
             }
         } else {
             Lib.debug(dbgVM, "PID[" + PID + "]:" + "\tpage fault, reading from swap file, spn " + pageTable[vpn].ppn);